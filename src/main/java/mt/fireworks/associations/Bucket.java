@@ -0,0 +1,265 @@
+package mt.fireworks.associations;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed size chunk of memory backing part of a {@link ByteList}.
+ * Bucket is either a plain heap array, a direct or memory mapped
+ * buffer living outside of java heap, or a read only compressed array.
+ */
+abstract class Bucket {
+
+    /** @return size of bucket in bytes */
+    abstract int size();
+
+    abstract byte read(int off);
+
+    abstract void write(int off, byte b);
+
+    /** Copy {@code len} bytes at {@code off} to {@code dest} */
+    abstract void read(int off, byte[] dest, int destPos, int len);
+
+    /** Copy {@code len} bytes from {@code src} to bucket at {@code off} */
+    abstract void write(int off, byte[] src, int srcPos, int len);
+
+    /** Zero whole bucket, so it can be reused by another list. */
+    void clear() {
+        int size = size();
+        for (int off = 0; off < size; off += ZEROS.length) {
+            write(off, ZEROS, 0, Math.min(ZEROS.length, size - off));
+        }
+    }
+
+    static final byte[] ZEROS = new byte[4 * 1024];
+
+    /** @return backing heap array, or null if bucket is not on heap */
+    byte[] array() {
+        return null;
+    }
+
+    /** Release memory of this bucket. Bucket is unusable afterwards. */
+    void free() {
+    }
+
+    /** @return true if bucket can be cleared and reused by another list */
+    boolean reusable() {
+        return true;
+    }
+
+
+
+    static class HeapBucket extends Bucket {
+        final byte[] data;
+
+        HeapBucket(int size) {
+            this.data = new byte[size];
+        }
+
+        int size() {
+            return data.length;
+        }
+
+        byte read(int off) {
+            return data[off];
+        }
+
+        void write(int off, byte b) {
+            data[off] = b;
+        }
+
+        void read(int off, byte[] dest, int destPos, int len) {
+            System.arraycopy(data, off, dest, destPos, len);
+        }
+
+        void write(int off, byte[] src, int srcPos, int len) {
+            System.arraycopy(src, srcPos, data, off, len);
+        }
+
+        void clear() {
+            Arrays.fill(data, (byte) 0);
+        }
+
+        byte[] array() {
+            return data;
+        }
+    }
+
+
+    /**
+     * Bucket backed by a buffer outside of java heap. Access goes through
+     * absolute buffer methods, so bucket can be used by many threads at once.
+     */
+    static class BufferBucket extends Bucket {
+        final ByteBuffer buffer;
+
+        BufferBucket(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int size() {
+            return buffer.capacity();
+        }
+
+        byte read(int off) {
+            return buffer.get(off);
+        }
+
+        void write(int off, byte b) {
+            buffer.put(off, b);
+        }
+
+        void read(int off, byte[] dest, int destPos, int len) {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(off);
+            dup.get(dest, destPos, len);
+        }
+
+        void write(int off, byte[] src, int srcPos, int len) {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(off);
+            dup.put(src, srcPos, len);
+        }
+
+        void free() {
+            clean(buffer);
+        }
+    }
+
+
+    /**
+     * Sealed bucket, compressed with {@link Lz4}. Reads decompress bucket to
+     * a small per thread cache, and read from cache. Writes are not supported.
+     */
+    static class CompressedBucket extends Bucket {
+        final byte[] compressed;
+        final int size;
+        final BucketCompression compression;
+
+        CompressedBucket(byte[] compressed, int size, BucketCompression compression) {
+            this.compressed = compressed;
+            this.size = size;
+            this.compression = compression;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte read(int off) {
+            return array()[off];
+        }
+
+        void write(int off, byte b) {
+            throw new UnsupportedOperationException("Compressed bucket is read only");
+        }
+
+        void read(int off, byte[] dest, int destPos, int len) {
+            System.arraycopy(array(), off, dest, destPos, len);
+        }
+
+        void write(int off, byte[] src, int srcPos, int len) {
+            throw new UnsupportedOperationException("Compressed bucket is read only");
+        }
+
+        /** @return decompressed data, from cache of current thread */
+        byte[] array() {
+            return decompressed.get().get(this);
+        }
+
+        boolean reusable() {
+            return false;
+        }
+    }
+
+    static final ThreadLocal<DecompressCache> decompressed = ThreadLocal.withInitial(DecompressCache::new);
+
+    /**
+     * Last two buckets decompressed by a thread. Two slots keep bucket being
+     * peeked while peeker itself reads another bucket. Least recently used
+     * slot is overwritten on miss.
+     */
+    static class DecompressCache {
+        final CompressedBucket[] keys = new CompressedBucket[2];
+        final byte[][] data = new byte[2][];
+        int lastUsed = 0;
+
+        byte[] get(CompressedBucket bucket) {
+            if (keys[lastUsed] == bucket) return data[lastUsed];
+            int other = 1 - lastUsed;
+            if (keys[other] == bucket) {
+                lastUsed = other;
+                return data[other];
+            }
+
+            byte[] arr = data[other];
+            if (arr == null || arr.length != bucket.size) {
+                arr = new byte[bucket.size];
+            }
+            long start = System.nanoTime();
+            Lz4.decompress(bucket.compressed, 0, bucket.compressed.length, arr, 0, bucket.size);
+            bucket.compression.decoded(System.nanoTime() - start);
+
+            keys[other] = bucket;
+            data[other] = arr;
+            lastUsed = other;
+            return arr;
+        }
+    }
+
+
+    static Bucket heap(int size) {
+        return new HeapBucket(size);
+    }
+
+    static Bucket direct(int size) {
+        return new BufferBucket(ByteBuffer.allocateDirect(size));
+    }
+
+
+    /**
+     * Eagerly release memory of direct or mapped buffer. Uses {@code Unsafe.invokeCleaner}
+     * on java 9+, and buffer cleaner on java 8. If neither works, memory is left to GC.
+     */
+    static void clean(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) return;
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+        }
+        catch (Exception e) {
+            // no eager release on this jvm, buffer is released by GC
+        }
+    }
+
+    static final Object unsafe;
+    static final Method invokeCleaner;
+
+    static {
+        Object u = null;
+        Method m = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = f.get(null);
+            m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (Exception e) {
+            // java 8, fallback to buffer cleaner
+        }
+        unsafe = u;
+        invokeCleaner = m;
+    }
+}
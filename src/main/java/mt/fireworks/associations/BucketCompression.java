@@ -0,0 +1,119 @@
+package mt.fireworks.associations;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Compression of sealed {@link ByteList} buckets, shared by many lists
+ * which report to same metrics.
+ *
+ * <p>Bucket is compressed with {@link Lz4} codec, and kept compressed only
+ * if it shrinks at least to {@code maxRatio} of its raw size. Compressed
+ * bucket is read through a small per thread cache of decompressed buckets.
+ */
+public class BucketCompression {
+
+    /** max ratio of compressed to raw size, for compressed bucket to be kept */
+    @Getter final double maxRatio;
+
+    final AtomicLong rawBytes = new AtomicLong();
+    final AtomicLong compressedBytes = new AtomicLong();
+    final AtomicLong compressedBuckets = new AtomicLong();
+    final AtomicLong rejectedBuckets = new AtomicLong();
+    final AtomicLong encodeTime = new AtomicLong();
+    final AtomicLong decodeCount = new AtomicLong();
+    final AtomicLong decodeTime = new AtomicLong();
+
+
+    public BucketCompression() {
+        this(0.9);
+    }
+
+    public BucketCompression(double maxRatio) {
+        this.maxRatio = maxRatio;
+    }
+
+
+    /** @return compressed copy of bucket, or null if bucket doesn't compress well */
+    Bucket compress(Bucket raw) {
+        long start = System.nanoTime();
+        int size = raw.size();
+        byte[] data = raw.array();
+        if (data == null) {
+            data = new byte[size];
+            raw.read(0, data, 0, size);
+        }
+
+        byte[] dst = new byte[Lz4.maxCompressedLength(size)];
+        int len = Lz4.compress(data, 0, size, dst, 0);
+        encodeTime.addAndGet(System.nanoTime() - start);
+
+        if (len > size * maxRatio) {
+            rejectedBuckets.incrementAndGet();
+            return null;
+        }
+
+        byte[] compressed = new byte[len];
+        System.arraycopy(dst, 0, compressed, 0, len);
+        rawBytes.addAndGet(size);
+        compressedBytes.addAndGet(len);
+        compressedBuckets.incrementAndGet();
+        return new Bucket.CompressedBucket(compressed, size, this);
+    }
+
+
+    void decoded(long duration) {
+        decodeCount.incrementAndGet();
+        decodeTime.addAndGet(duration);
+    }
+
+
+    /** @return ratio of raw to compressed size of compressed buckets, or 0 if none is compressed */
+    public double getRatio() {
+        long c = compressedBytes.get();
+        return c == 0 ? 0 : (double) rawBytes.get() / c;
+    }
+
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public long getCompressedBuckets() {
+        return compressedBuckets.get();
+    }
+
+    /** @return number of buckets left raw, as they didn't compress well */
+    public long getRejectedBuckets() {
+        return rejectedBuckets.get();
+    }
+
+    /** @return total time spent compressing buckets in nanoseconds */
+    public long getEncodeTime() {
+        return encodeTime.get();
+    }
+
+    /** @return number of bucket decompressions, that is per thread cache misses */
+    public long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    /** @return total time spent decompressing buckets in nanoseconds */
+    public long getDecodeTime() {
+        return decodeTime.get();
+    }
+
+    public void resetMetrics() {
+        rawBytes.set(0);
+        compressedBytes.set(0);
+        compressedBuckets.set(0);
+        rejectedBuckets.set(0);
+        encodeTime.set(0);
+        decodeCount.set(0);
+        decodeTime.set(0);
+    }
+}
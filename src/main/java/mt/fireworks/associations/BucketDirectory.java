@@ -0,0 +1,113 @@
+package mt.fireworks.associations;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Lock free directory of {@link ByteList} buckets.
+ *
+ * <p>Directory is a preallocated two level array. Top level holds leaves,
+ * and each leaf holds {@code LEAF_SIZE} buckets. Leaves and buckets are
+ * published by CAS, and read with volatile reads, thus readers never lock
+ * and never see partially constructed bucket. Directory only grows, and
+ * it never copies or moves published buckets.
+ */
+class BucketDirectory {
+
+    static final int LEAF_BITS = 10;
+    static final int LEAF_SIZE = 1 << LEAF_BITS;
+    static final int LEAF_MASK = LEAF_SIZE - 1;
+    static final int TOP_SIZE = 4096;
+
+    /** max number of buckets in directory */
+    static final int CAPACITY = TOP_SIZE * LEAF_SIZE;
+
+    final AtomicReferenceArray<AtomicReferenceArray<Bucket>> leaves = new AtomicReferenceArray<>(TOP_SIZE);
+
+    /** number of published buckets */
+    final AtomicInteger count = new AtomicInteger();
+
+    /** total size of published buckets in bytes */
+    final AtomicLong allocated = new AtomicLong();
+
+
+    /** @return bucket at index, or null if bucket is not yet allocated */
+    Bucket get(int bucketIndex) {
+        AtomicReferenceArray<Bucket> leaf = leaves.get(bucketIndex >>> LEAF_BITS);
+        if (leaf == null) return null;
+        return leaf.get(bucketIndex & LEAF_MASK);
+    }
+
+
+    /**
+     * Return bucket at index, allocating it if missing. When two threads race to
+     * allocate same bucket, one bucket is published and the other one is passed
+     * to release, as it may be pooled.
+     */
+    Bucket getOrCreate(int bucketIndex, IntFunction<Bucket> allocator, Consumer<Bucket> release) {
+        if (bucketIndex >= CAPACITY) {
+            throw new RuntimeException("ByteList capacity exceeded. Bucket index: " + bucketIndex + ", max bucket count: " + CAPACITY);
+        }
+
+        int top = bucketIndex >>> LEAF_BITS;
+        AtomicReferenceArray<Bucket> leaf = leaves.get(top);
+        if (leaf == null) {
+            leaves.compareAndSet(top, null, new AtomicReferenceArray<>(LEAF_SIZE));
+            leaf = leaves.get(top);
+        }
+
+        int idx = bucketIndex & LEAF_MASK;
+        Bucket bucket = leaf.get(idx);
+        if (bucket != null) return bucket;
+
+        Bucket newBucket = allocator.apply(bucketIndex);
+        if (leaf.compareAndSet(idx, null, newBucket)) {
+            count.incrementAndGet();
+            allocated.addAndGet(newBucket.size());
+            return newBucket;
+        }
+
+        release.accept(newBucket);
+        return leaf.get(idx);
+    }
+
+
+    /** Replace published bucket, if it wasn't replaced already. */
+    boolean replace(int bucketIndex, Bucket expect, Bucket update) {
+        AtomicReferenceArray<Bucket> leaf = leaves.get(bucketIndex >>> LEAF_BITS);
+        if (leaf == null) return false;
+        return leaf.compareAndSet(bucketIndex & LEAF_MASK, expect, update);
+    }
+
+
+    int count() {
+        return count.get();
+    }
+
+    long allocated() {
+        return allocated.get();
+    }
+
+
+    /** Free all buckets and empty directory. */
+    void freeAll() {
+        freeAll(Bucket::free);
+    }
+
+    /** Empty directory, passing each bucket to release. */
+    void freeAll(Consumer<Bucket> release) {
+        for (int top = 0; top < TOP_SIZE; top++) {
+            AtomicReferenceArray<Bucket> leaf = leaves.getAndSet(top, null);
+            if (leaf == null) continue;
+            for (int idx = 0; idx < LEAF_SIZE; idx++) {
+                Bucket b = leaf.getAndSet(idx, null);
+                if (b != null) release.accept(b);
+            }
+        }
+        count.set(0);
+        allocated.set(0);
+    }
+}
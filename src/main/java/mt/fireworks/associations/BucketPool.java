@@ -0,0 +1,119 @@
+package mt.fireworks.associations;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Pool of free buckets shared by many {@link ByteList}s of same allocation size.
+ *
+ * <p>Freed list returns its buckets to pool, and new lists take them instead
+ * of allocating fresh memory. Returned buckets are zeroed, as list relies on
+ * zeros to find its end. Pool holds at most {@code capacity} bytes, buckets
+ * returned over capacity are freed.
+ *
+ * <p>Memory mapped buckets are tied to file position and are never pooled.
+ */
+public class BucketPool {
+
+    @Getter final int bucketSize;
+    @Getter final ByteList.Memory memory;
+    @Getter final long capacity;
+
+    final ConcurrentLinkedDeque<Bucket> buckets = new ConcurrentLinkedDeque<>();
+    final AtomicLong pooledBytes = new AtomicLong();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong discarded = new AtomicLong();
+
+
+    /**
+     * @param bucketSize allocation size of lists using this pool
+     * @param memory memory of pooled buckets, either heap or off heap
+     * @param capacity max bytes held by pool
+     */
+    public BucketPool(int bucketSize, ByteList.Memory memory, long capacity) {
+        if (memory == ByteList.Memory.MAPPED) {
+            throw new IllegalArgumentException("Mapped buckets can't be pooled");
+        }
+        this.bucketSize = bucketSize;
+        this.memory = memory != null ? memory : ByteList.Memory.HEAP;
+        this.capacity = capacity;
+    }
+
+
+    /** @return pooled bucket, or new bucket if pool is empty */
+    Bucket take() {
+        Bucket bucket = buckets.pollFirst();
+        if (bucket == null) {
+            misses.incrementAndGet();
+            return memory == ByteList.Memory.OFF_HEAP ? Bucket.direct(bucketSize) : Bucket.heap(bucketSize);
+        }
+        pooledBytes.addAndGet(-bucketSize);
+        hits.incrementAndGet();
+        return bucket;
+    }
+
+
+    /** Return bucket to pool, or free it if pool is full. */
+    void offer(Bucket bucket) {
+        if (!bucket.reusable()) {
+            bucket.free();
+            return;
+        }
+        if (bucket.size() != bucketSize || pooledBytes.addAndGet(bucketSize) > capacity) {
+            if (bucket.size() == bucketSize) pooledBytes.addAndGet(-bucketSize);
+            discarded.incrementAndGet();
+            bucket.free();
+            return;
+        }
+        bucket.clear();
+        buckets.offerFirst(bucket);
+    }
+
+
+    /** Free all pooled buckets. */
+    public void clear() {
+        Bucket bucket;
+        while ((bucket = buckets.pollFirst()) != null) {
+            pooledBytes.addAndGet(-bucketSize);
+            bucket.free();
+        }
+    }
+
+
+    /** @return bytes currently held by pool */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /** @return number of buckets taken from pool */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return number of buckets allocated as pool was empty */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return number of buckets freed as pool was full */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /** @return ratio of buckets taken from pool to all taken buckets */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public void resetMetrics() {
+        hits.set(0);
+        misses.set(0);
+        discarded.set(0);
+    }
+}
@@ -1,10 +1,16 @@
 package mt.fireworks.associations;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-import lombok.AllArgsConstructor;
 
 /**
  * Same as byteList but with variable header size.
@@ -16,12 +22,111 @@ public class ByteList {
         T peek(long objPos, byte[] bucket, int pos, int len);
     }
 
-    final ArrayList<byte[]> buckets = new ArrayList<>();
+    /** Writes object data directly to space reserved in list. */
+    @FunctionalInterface
+    public interface Writer {
+        /** Write exactly {@code len} bytes to {@code dest} starting at {@code pos}. */
+        void write(byte[] dest, int pos, int len);
+    }
+
+    /** Memory used for buckets of a list. */
+    public enum Memory {
+        /** buckets are byte arrays on java heap */
+        HEAP,
+
+        /**
+         * Buckets are direct buffers outside of java heap. Bucket data is not
+         * scanned by GC, and memory is released by {@link ByteList#free()}.
+         * Reads copy data to a thread local array, thus bucket passed to
+         * peeker is valid only for duration of peek.
+         */
+        OFF_HEAP,
+
+        /**
+         * Buckets are regions of a memory mapped file. Data survives restart, as
+         * list created over existing file will map it and continue where it stopped.
+         * Free will unmap and delete file. Created with {@link ByteList#ByteList(int, File)}.
+         */
+        MAPPED
+    }
+
+    final BucketDirectory buckets = new BucketDirectory();
     final AtomicLong size = new AtomicLong();
+    /** size of full bucket, buckets growing from initial size are smaller */
     final int bucketSize;
 
-    public ByteList(int allocationSize) {
+    /** bucket growth, first bucket is of initial size, and each following is doubled until full size is reached */
+    int initialBucketSize;
+    /** number of buckets smaller than full size */
+    int growthBuckets = 0;
+    /** position where full size buckets start */
+    long growthEnd = 0;
+    final Memory memory;
+
+    /** readers currently accessing off heap memory, free waits for them */
+    final LongAdder readers = new LongAdder();
+    volatile boolean freed = false;
+
+    /** backing file and its channel of mapped list */
+    final File file;
+    final FileChannel channel;
+
+    /** size of thread local append chunk, 0 when writers reserve space per object */
+    int chunkSize = 0;
+    final ThreadLocal<Chunk> chunks = ThreadLocal.withInitial(Chunk::new);
+
+    /** objects never cross bucket boundary, list is padded instead */
+    boolean noStraddle = false;
+    /** bytes skipped to keep objects within bucket or chunk */
+    final AtomicLong padding = new AtomicLong();
+
+    /** pool buckets are taken from, and returned to on free */
+    BucketPool pool;
+
+    /** number of stored objects */
+    final LongAdder objectCount = new LongAdder();
+    /** positions of objects in order they were added, null if not enabled */
+    volatile OrdinalIndex ordinals;
+
+    /** compression of full buckets, null if not enabled */
+    BucketCompression compression;
+    /** buckets below this index are already compressed, or left raw */
+    int compressedUpTo = 0;
+    /** writers currently adding objects, tracked only with compression */
+    final LongAdder writers = new LongAdder();
+
+    public ByteList(int allocationSize, Memory memory) {
+        if (memory == Memory.MAPPED) {
+            throw new IllegalArgumentException("Mapped list requires a file. Use ByteList(int, File) constructor.");
+        }
+        this.bucketSize = allocationSize;
+        this.initialBucketSize = allocationSize;
+        this.memory = memory != null ? memory : Memory.HEAP;
+        this.file = null;
+        this.channel = null;
+    }
+
+    /**
+     * List stored in memory mapped file. If file already exists, its content
+     * is mapped and list continues after last stored object.
+     */
+    @SuppressWarnings("resource")
+    public ByteList(int allocationSize, File file) {
         this.bucketSize = allocationSize;
+        this.initialBucketSize = allocationSize;
+        this.memory = Memory.MAPPED;
+        this.file = file;
+        try {
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            remap();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Can't open file: " + file, e);
+        }
+    }
+
+    public ByteList(int allocationSize) {
+        this(allocationSize, Memory.HEAP);
     }
 
     public ByteList() {
@@ -29,115 +134,632 @@ public class ByteList {
     }
 
 
+    /**
+     * Enable thread local append chunks. Instead of reserving space for each
+     * object, writer thread claims a whole chunk of list with one CAS and fills
+     * it without contention. Unused tail of a chunk is left as a gap of zeros,
+     * which iteration skips. Useful when many threads write to the same list.
+     * Has to be set before first object is added.
+     *
+     * @param chunkSize size of chunk in bytes, 0 to disable chunks
+     */
+    public ByteList withAppendChunks(int chunkSize) {
+        if (chunkSize < 0 || chunkSize > bucketSize) {
+            throw new IllegalArgumentException("Chunk size must be between 0 and allocation size: " + bucketSize + ", but is: " + chunkSize);
+        }
+        if (size.get() > 0 && memory != Memory.MAPPED) {
+            throw new IllegalStateException("Append chunks have to be set before first object is added");
+        }
+        if (chunkSize > 0 && compression != null) {
+            throw new IllegalStateException("Append chunks can't be used with compression, as chunks are written after bucket is full");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+
+    /**
+     * Start with small buckets, and double size of each following bucket until
+     * allocation size is reached. Small and rarely written lists then don't
+     * allocate a full bucket. Has to be set before any bucket is allocated.
+     *
+     * @param initialBucketSize size of first bucket in bytes
+     */
+    public ByteList withBucketGrowth(int initialBucketSize) {
+        if (initialBucketSize <= 0 || initialBucketSize > bucketSize) {
+            throw new IllegalArgumentException("Initial bucket size must be between 1 and allocation size: " + bucketSize + ", but is: " + initialBucketSize);
+        }
+        if (buckets.count() > 0) {
+            throw new IllegalStateException("Bucket growth has to be set before first bucket is allocated");
+        }
+
+        int growth = 0;
+        long end = 0;
+        while (growth < 30 && ((long) initialBucketSize << growth) < bucketSize) {
+            end += (long) initialBucketSize << growth;
+            growth++;
+        }
+        this.initialBucketSize = initialBucketSize;
+        this.growthBuckets = growth;
+        this.growthEnd = end;
+        return this;
+    }
+
+
+    /**
+     * Keep position of each object in order of adding, so objects can be
+     * accessed by ordinal, iterated newest first, and iteration split in
+     * ranges. Index costs about 4 bytes per object. Objects already in list,
+     * as of restored mapped list, are indexed in order of their positions.
+     * Has to be set before concurrent writers start adding objects.
+     */
+    public synchronized ByteList withOrdinalIndex() {
+        if (ordinals != null) return this;
+        OrdinalIndex index = new OrdinalIndex();
+        forEach((objPos, bucket, pos, len) -> index.add(objPos));
+        this.ordinals = index;
+        return this;
+    }
+
+
+    /**
+     * Enable compression of full buckets by {@link #compress()}. Compressed buckets
+     * are read only, and are read through a per thread cache of decompressed
+     * buckets. Only heap lists without append chunks can be compressed.
+     * Has to be set before first object is added.
+     */
+    public ByteList withCompression(BucketCompression compression) {
+        if (compression != null && memory != Memory.HEAP) {
+            throw new IllegalArgumentException("Only heap list can be compressed, but memory is: " + memory);
+        }
+        if (compression != null && chunkSize > 0) {
+            throw new IllegalStateException("Compression can't be used with append chunks, as chunks are written after bucket is full");
+        }
+        if (size.get() > 0) {
+            throw new IllegalStateException("Compression has to be set before first object is added");
+        }
+        this.compression = compression;
+        return this;
+    }
+
+
+    /**
+     * Compress buckets which are full, and thus no longer written. Bucket at the end
+     * of list is left raw, and is compressed by a later call, once it is full.
+     * Intended for lists which are mostly read, as writers to list wait while
+     * buckets are compressed. Readers are not blocked, and keep reading raw
+     * bucket until compressed one is published.
+     *
+     * @return number of compressed buckets
+     */
+    public synchronized int compress() {
+        if (compression == null || freed) return 0;
+
+        // new objects are reserved at or after end, so buckets before it are full
+        int limit = bucketIndex(size.get());
+        if (limit <= compressedUpTo) return 0;
+
+        // writers which reserved space before end was read may still be writing
+        if (!awaitWriters()) return 0;
+
+        int count = 0;
+        for (int idx = compressedUpTo; idx < limit; idx++) {
+            Bucket raw = buckets.get(idx);
+            if (raw == null) continue;
+            Bucket compressed = compression.compress(raw);
+            if (compressed != null && buckets.replace(idx, raw, compressed)) {
+                count++;
+            }
+        }
+        compressedUpTo = limit;
+        return count;
+    }
+
+    /** @return true if there are no active writers, false if they didn't finish in time */
+    boolean awaitWriters() {
+        for (int spin = 0; spin < 10_000; spin++) {
+            if (writers.sum() == 0) return true;
+            Thread.yield();
+        }
+        return false;
+    }
+
+
+    /**
+     * Keep each object within one bucket. Object which doesn't fit in the rest of
+     * a bucket is written at the start of next bucket, and unused tail of bucket
+     * is left as padding, which iteration skips. Peek then always reads heap
+     * objects directly from bucket, without copying them.
+     * Has to be set before first object is added.
+     */
+    public ByteList withNoStraddle(boolean noStraddle) {
+        if (size.get() > 0 && memory != Memory.MAPPED) {
+            throw new IllegalStateException("No straddle layout has to be set before first object is added");
+        }
+        this.noStraddle = noStraddle;
+        return this;
+    }
+
+
+    /**
+     * Take buckets from pool, and return them to pool when list is freed.
+     * Pool has to match allocation size and memory of this list. As pooled
+     * buckets are reused, heap list with a pool tracks readers like off heap
+     * list does, and free waits for them before returning buckets.
+     * Has to be set before first object is added.
+     */
+    public ByteList withBucketPool(BucketPool pool) {
+        if (pool != null && (pool.bucketSize != bucketSize || pool.memory != memory)) {
+            String msg = "Pool of " + pool.memory + " buckets of size: " + pool.bucketSize + " bytes, "
+                       + "doesn't match list of " + memory + " buckets of size: " + bucketSize + " bytes.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (size.get() > 0) {
+            throw new IllegalStateException("Bucket pool has to be set before first object is added");
+        }
+        this.pool = pool;
+        return this;
+    }
+
+
     public long add(byte[] data) {
 		return add(data, 0, data.length);
 	}
 
 
     public long add(final byte[] srcData, final int srcOffset, final int srcLength) {
-        if (srcLength > bucketSize) {
-            String msg = "Illegal data size. "
-                       + "Adding data of size: " + srcLength + " bytes, "
-                       + "while allocationSize is set to: " + bucketSize + " bytes. "
-                       + "To add data this big increase allocation size.";
-            throw new RuntimeException(msg);
+        beginWrite();
+        try {
+            final long objStartPos = reserve(srcLength);
+            write(objStartPos + ObjHeader.headerSize(srcLength), srcData, srcOffset, srcLength);
+            added(objStartPos);
+            return objStartPos;
+        }
+        finally {
+            endWrite();
+        }
+	}
+
+
+    /**
+     * Reserve {@code length} bytes in list and let writer fill them in place.
+     * Heap data which fits in one bucket is written directly to bucket array,
+     * otherwise writer fills thread local array which is then copied to list.
+     *
+     * @return key of added object
+     */
+    public long add(final int length, final Writer writer) {
+        beginWrite();
+        try {
+            final long objStartPos = reserve(length);
+            writeObject(objStartPos, length, writer);
+            added(objStartPos);
+            return objStartPos;
+        }
+        finally {
+            endWrite();
         }
+    }
 
-        final int headerSize = ObjHeader.headerSize(srcLength);
-        final int objectSize = headerSize + srcLength;
-        final long objStartPos = newObject(objectSize);
+    /**
+     * Add objects of given lengths, each filled in place by its writer.
+     * Space of whole batch is reserved with one update of list size. Objects
+     * placed in append chunks or within buckets are reserved one by one.
+     *
+     * @return keys of added objects, in order of lengths
+     */
+    public long[] addAll(final int[] lengths, final Writer[] writers) {
+        beginWrite();
+        try {
+            final long[] keys = reserveAll(lengths);
+            for (int idx = 0; idx < keys.length; idx++) {
+                writeObject(keys[idx], lengths[idx], writers[idx]);
+                added(keys[idx]);
+            }
+            return keys;
+        }
+        finally {
+            endWrite();
+        }
+    }
 
-        final byte[] startBuck = bucketForPosition(objStartPos);
-        final byte[] endBuck = bucketForPosition(objStartPos + objectSize);
 
-        final int headerIdx = (int) (objStartPos % bucketSize);
-        ObjHeader.writeHeader(srcLength, startBuck, endBuck, headerIdx);
+    /** Let writer fill data of object whose header is written. */
+    void writeObject(final long objStartPos, final int length, final Writer writer) {
+        final long dataPosition = objStartPos + ObjHeader.headerSize(length);
 
-        final int dataOffset = (int)((objStartPos + headerSize) % bucketSize);
+        final int bucketIndex = bucketIndex(dataPosition);
+        final Bucket bucket = buckets.get(bucketIndex);
+        final int offset = (int) (dataPosition - bucketStart(bucketIndex));
+        final byte[] array = bucket.array();
 
-        // everything fits in top bucket
-        if (startBuck == endBuck) {
-            System.arraycopy(srcData, srcOffset, startBuck, dataOffset, srcLength);
-            return objStartPos;
+        if (array != null && offset + length <= array.length) {
+            writer.write(array, offset, length);
+        }
+        else {
+            byte[] tmp = scratch(length);
+            writer.write(tmp, 0, length);
+            write(dataPosition, tmp, 0, length);
         }
+    }
 
-        final byte[] dataStartBucket = bucketForPosition(objStartPos + headerSize);
 
-        // split header, data is fully in bottom bucket
-        if (dataStartBucket == endBuck) {
-            System.arraycopy(srcData, srcOffset, endBuck, dataOffset, srcLength);
-            return objStartPos;
-        }
+    /** Count object whose data is written, and register it in ordinal index. */
+    void added(long objPos) {
+        objectCount.increment();
+        OrdinalIndex index = ordinals;
+        if (index != null) index.add(objPos);
+    }
+
 
-        // split data, data goes to top, then it pours to bottom
-        int len = bucketSize - dataOffset;
-        System.arraycopy(srcData, srcOffset, startBuck, dataOffset, len);
-        System.arraycopy(srcData, srcOffset + len, endBuck, 0, srcLength - len);
+    /** Reserve space for object with data of given length and write its header. */
+    long reserve(final int dataLength) {
+        checkLength(dataLength);
+
+        final int headerSize = ObjHeader.headerSize(dataLength);
+        final int objectSize = headerSize + dataLength;
+        final long objStartPos = chunkSize > 0 ? newObjectInChunk(objectSize) : newObject(objectSize);
+
+        writeHeader(objStartPos, dataLength);
         return objStartPos;
-	}
+    }
+
+
+    /** Reserve space for objects of given lengths and write their headers. @return object positions */
+    long[] reserveAll(final int[] dataLengths) {
+        final long[] positions = new long[dataLengths.length];
+        if (chunkSize > 0 || noStraddle) {
+            for (int idx = 0; idx < dataLengths.length; idx++) {
+                positions[idx] = reserve(dataLengths[idx]);
+            }
+            return positions;
+        }
+
+        long total = 0;
+        for (int dataLength: dataLengths) {
+            checkLength(dataLength);
+            total += ObjHeader.headerSize(dataLength) + dataLength;
+        }
+        long objPos = size.getAndAdd(total);
+        allocateBuckets(objPos, objPos + total);
+
+        for (int idx = 0; idx < dataLengths.length; idx++) {
+            positions[idx] = objPos;
+            writeHeader(objPos, dataLengths[idx]);
+            objPos += ObjHeader.headerSize(dataLengths[idx]) + dataLengths[idx];
+        }
+        return positions;
+    }
 
+    static void checkLength(final int dataLength) {
+        if (dataLength < 0 || dataLength > ObjHeader.MAX_LENGTH) {
+            String msg = "Illegal data size. "
+                       + "Adding data of size: " + dataLength + " bytes, "
+                       + "while max object size is: " + ObjHeader.MAX_LENGTH + " bytes.";
+            throw new RuntimeException(msg);
+        }
+    }
 
-    byte[] bucketForPosition(long objPos) {
-        int bucketIndex = (int) (objPos / bucketSize);
-        byte[] bucket = buckets.get(bucketIndex);
+
+    /** @return bucket holding position, or null if bucket isn't allocated */
+    Bucket bucketForPosition(long objPos) {
+        int bucketIndex = bucketIndex(objPos);
+        Bucket bucket = buckets.get(bucketIndex);
         return bucket;
     }
 
+    /** @return index of bucket holding position */
+    int bucketIndex(long pos) {
+        if (pos >= growthEnd) {
+            return growthBuckets + (int) ((pos - growthEnd) / bucketSize);
+        }
+        // growing bucket i starts at initialBucketSize * (2^i - 1)
+        return 63 - Long.numberOfLeadingZeros(pos / initialBucketSize + 1);
+    }
+
+    /** @return position of first byte in bucket */
+    long bucketStart(int bucketIndex) {
+        if (bucketIndex >= growthBuckets) {
+            return growthEnd + (long) (bucketIndex - growthBuckets) * bucketSize;
+        }
+        return (long) initialBucketSize * ((1L << bucketIndex) - 1);
+    }
+
+    /** @return size of bucket at index */
+    int bucketSize(int bucketIndex) {
+        if (bucketIndex >= growthBuckets) return bucketSize;
+        return initialBucketSize << bucketIndex;
+    }
+
 
     long newObject(int objectSize) {
+        if (noStraddle) {
+            return newObjectInBucket(objectSize);
+        }
         long objPos = size.getAndAdd(objectSize);
-        allocateBucketForPosition(objPos + objectSize);
+        allocateBuckets(objPos, objPos + objectSize);
         return objPos;
     }
 
-    synchronized
-    void allocateBucketForPosition(long objPos) {
-        int bucketIndex = (int) (objPos / bucketSize);
-        while (bucketIndex >= buckets.size())
-            buckets.add(new byte[bucketSize]);
+    /** Reserve object space within one bucket, padding to next bucket if object doesn't fit. */
+    long newObjectInBucket(int objectSize) {
+        while (true) {
+            long current = size.get();
+            long start = fitInBucket(current, objectSize);
+            if (size.compareAndSet(current, start + objectSize)) {
+                padding.addAndGet(start - current);
+                allocateBuckets(start, start + objectSize);
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Find first position at or after {@code pos} where range of {@code len} bytes
+     * fits in one bucket. Range bigger than full size bucket can't fit, and it
+     * starts at bucket boundary instead.
+     */
+    long fitInBucket(long pos, long len) {
+        int idx = bucketIndex(pos);
+        long start = bucketStart(idx);
+        if (pos + len <= start + bucketSize(idx)) return pos;
+        if (pos == start && idx >= growthBuckets) return pos;
+
+        idx++;
+        while (idx < growthBuckets && len > bucketSize(idx)) {
+            idx++;
+        }
+        return bucketStart(idx);
+    }
+
+    /** Reserve object space in thread local chunk, claiming new chunk when current is full. */
+    long newObjectInChunk(int objectSize) {
+        if (objectSize > chunkSize) {
+            return claim(objectSize);
+        }
+
+        Chunk chunk = chunks.get();
+        if (chunk.pos + objectSize > chunk.end) {
+            chunk.pos = claim(chunkSize);
+            chunk.end = chunk.pos + chunkSize;
+        }
+        long objPos = chunk.pos;
+        chunk.pos += objectSize;
+        return objPos;
+    }
+
+    /**
+     * Claim chunk aligned region of list big enough for {@code len} bytes.
+     * Space between current end of list and start of region is left as a gap.
+     * With no straddle layout, region which would cross bucket boundary starts
+     * at next bucket instead.
+     */
+    long claim(int len) {
+        long claimSize = chunkCeil(len);
+        while (true) {
+            long current = size.get();
+            long start = chunkCeil(current);
+            if (noStraddle) {
+                start = fitInBucket(start, Math.min(claimSize, bucketSize));
+            }
+            if (size.compareAndSet(current, start + claimSize)) {
+                padding.addAndGet(start - current);
+                allocateBuckets(start, start + claimSize);
+                return start;
+            }
+        }
+    }
+
+    /** @return position rounded up to chunk boundary */
+    long chunkCeil(long pos) {
+        return (pos + chunkSize - 1) / chunkSize * chunkSize;
+    }
+
+    /**
+     * Find next position where an object could start, after a gap at {@code objPos}.
+     * Gaps are unused tails of append chunks, and bucket padding of no straddle
+     * layout. Gap ends at chunk or bucket boundary, so jump is to nearest of them.
+     * Padding before oversized object can span whole buckets, never allocated.
+     *
+     * @return position after gap, or -1 if there is no gap and list ends at position
+     */
+    long skipGap(long objPos) {
+        if (chunkSize == 0 && !noStraddle) return -1;
+        if (objPos >= size.get()) return -1;
+
+        long next = Long.MAX_VALUE;
+        if (chunkSize > 0) next = (objPos / chunkSize + 1) * chunkSize;
+        if (noStraddle) next = Math.min(next, bucketStart(bucketIndex(objPos) + 1));
+        return next;
+    }
+
+    static class Chunk {
+        long pos;
+        long end;
+    }
+
+    /**
+     * Make sure buckets for positions in range are allocated. Lock free,
+     * concurrent writers race only when they both need a new bucket.
+     */
+    void allocateBuckets(long fromPos, long toPos) {
+        int fromIndex = bucketIndex(fromPos);
+        int toIndex = bucketIndex(toPos);
+        for (int idx = fromIndex; idx <= toIndex; idx++) {
+            buckets.getOrCreate(idx, this::newBucket, this::releaseBucket);
+        }
+    }
+
+    Bucket newBucket(int bucketIndex) {
+        int size = bucketSize(bucketIndex);
+        if (pool != null && size == pool.bucketSize) return pool.take();
+        if (memory == Memory.OFF_HEAP) return Bucket.direct(size);
+        if (memory == Memory.MAPPED) return mapBucket(bucketIndex);
+        return Bucket.heap(size);
+    }
+
+    /** Release bucket which was never published, back to pool if list has one. */
+    void releaseBucket(Bucket bucket) {
+        if (pool != null) pool.offer(bucket);
+        else bucket.free();
+    }
+
+    Bucket mapBucket(int bucketIndex) {
+        long position = bucketStart(bucketIndex);
+        try {
+            MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, position, bucketSize(bucketIndex));
+            return new Bucket.BufferBucket(buffer);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Can't map bucket at: " + position + " of file: " + file, e);
+        }
+    }
+
+    /**
+     * Map all buckets of existing file, and find end of last stored object.
+     * Zeros between objects are gaps left by append chunks, and are skipped.
+     */
+    void remap() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize == 0) return;
+
+        long end = 0;
+        long pos = 0;
+        allocateBuckets(0, fileSize - 1);
+        while (pos < fileSize) {
+            if (readByte(pos) == 0) {
+                pos++;
+                continue;
+            }
+            int dataLength = readHeader(pos);
+            pos += ObjHeader.headerSize(dataLength) + dataLength;
+            end = pos;
+            objectCount.increment();
+        }
+        size.set(end);
+        allocateBuckets(0, end);
+    }
+
+
+    /** Write data at position, pouring it to following buckets if needed. */
+    void write(long pos, byte[] src, int srcPos, int len) {
+        while (len > 0) {
+            int idx = bucketIndex(pos);
+            Bucket bucket = buckets.get(idx);
+            int offset = (int) (pos - bucketStart(idx));
+            int count = Math.min(len, bucket.size() - offset);
+            bucket.write(offset, src, srcPos, count);
+            pos += count;
+            srcPos += count;
+            len -= count;
+        }
+    }
+
+    /** Read data at position, collecting it from following buckets if needed. */
+    void read(long pos, byte[] dest, int destPos, int len) {
+        while (len > 0) {
+            int idx = bucketIndex(pos);
+            Bucket bucket = buckets.get(idx);
+            int offset = (int) (pos - bucketStart(idx));
+            int count = Math.min(len, bucket.size() - offset);
+            bucket.read(offset, dest, destPos, count);
+            pos += count;
+            destPos += count;
+            len -= count;
+        }
+    }
+
+    byte readByte(long pos) {
+        int idx = bucketIndex(pos);
+        return buckets.get(idx).read((int) (pos - bucketStart(idx)));
+    }
+
+    void writeByte(long pos, byte b) {
+        int idx = bucketIndex(pos);
+        buckets.get(idx).write((int) (pos - bucketStart(idx)), b);
+    }
+
+
+    void writeHeader(long objPos, int dataLength) {
+        int headerSize = ObjHeader.headerSize(dataLength);
+        int header = ObjHeader.header(dataLength);
+        for (int off = 0; off < headerSize; off++) {
+            byte b = (byte) (header >>> (8 * (headerSize - 1 - off)));
+            writeByte(objPos + off, b);
+        }
+    }
+
+    int readHeader(long objPos) {
+        byte b = readByte(objPos);
+        int val = 0x3F & b;
+        int headerLen = ((0xC0 & b) >>> 6) + 1;
+        for (int off = 1; off < headerLen; off++) {
+            b = readByte(objPos + off);
+            val = (val << 8) | (b & 0xFF);
+        }
+        return val;
     }
 
 
 
     public <T> T peek(long objPos, Peeker<T> peeker) {
-        final int dataLength = dataLength(objPos);
-        final int headerSize = ObjHeader.headerSize(dataLength);
+        enter();
+        try {
+            return peek(objPos, readHeader(objPos), peeker);
+        }
+        finally {
+            exit();
+        }
+    }
 
+    /** Peek at object whose header is already read. Caller has to {@link #enter()}. */
+    <T> T peek(long objPos, int dataLength, Peeker<T> peeker) {
+        final int headerSize = ObjHeader.headerSize(dataLength);
         final long dataPosition = objPos + headerSize;
-        final long dataEndPosition = dataPosition + dataLength;
 
-        final byte[] startDataBucket = bucketForPosition(dataPosition);
-        final byte[] endDataBucket = bucketForPosition(dataEndPosition);
+        final int bucketIndex = bucketIndex(dataPosition);
+        final Bucket bucket = buckets.get(bucketIndex);
+        final int offset = (int) (dataPosition - bucketStart(bucketIndex));
+        final byte[] array = bucket.array();
 
-        if (startDataBucket == endDataBucket) {
-            int offset = (int) (dataPosition % bucketSize);
-            T val = peeker.peek(objPos, startDataBucket, offset, dataLength);
+        if (array != null && offset + dataLength <= array.length) {
+            T val = peeker.peek(objPos, array, offset, dataLength);
             return val;
         }
 
-
-        // DATA is split between two buckets
-        int objectSize = headerSize + dataLength;
-        byte[] objCpy = new byte[objectSize];
-        ObjHeader.writeHeader(dataLength, objCpy, null, 0);
-        int offset = (int) (dataPosition % bucketSize);
-        int startReadLen = bucketSize - offset;
-        int endReadLen = dataLength - startReadLen;
-        System.arraycopy(startDataBucket, offset, objCpy, headerSize, startReadLen);
-        System.arraycopy(endDataBucket, 0, objCpy, headerSize + startReadLen, endReadLen);
-        T val = peeker.peek(objPos, objCpy, headerSize, dataLength);
+        // DATA is split between two buckets or it is off heap
+        byte[] objCpy = array != null ? new byte[dataLength] : scratch(dataLength);
+        read(dataPosition, objCpy, 0, dataLength);
+        T val = peeker.peek(objPos, objCpy, 0, dataLength);
         return val;
     }
 
 
+    static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[4 * 1024]);
+
+    /** max size of thread local array, bigger objects get a new array */
+    static final int SCRATCH_LIMIT = 1024 * 1024;
+
+    /** @return thread local array used for reading off heap data */
+    static byte[] scratch(int len) {
+        if (len > SCRATCH_LIMIT) return new byte[len];
+        byte[] arr = scratch.get();
+        if (arr.length >= len) return arr;
+        arr = new byte[Math.min(SCRATCH_LIMIT, Math.max(len, 2 * arr.length))];
+        scratch.set(arr);
+        return arr;
+    }
+
+
     /** @return Length of data stored under key. */
     public int dataLength(long objPos) {
-        byte[] startBuck = bucketForPosition(objPos);
-        int bucketOffset = (int) (objPos % bucketSize);
-        int headerSize = ObjHeader.headerSize(startBuck, bucketOffset);
-        byte[] headerEndBuck = bucketForPosition(objPos + headerSize); // FIXME beskoristan pozivi, može se izračunati iz offseta + len
-        int dataLength = ObjHeader.readHeader(startBuck, headerEndBuck, bucketOffset);
-        return dataLength;
+        enter();
+        try {
+            return readHeader(objPos);
+        }
+        finally {
+            exit();
+        }
     }
 
     /** @return data under key */
@@ -163,12 +785,121 @@ public class ByteList {
         });
     }
 
+    /** @return number of objects stored in list */
+    public long size() {
+        return objectCount.sum();
+    }
+
+    /** @return key of object with given ordinal. Requires ordinal index. */
+    public long keyOf(long ordinal) {
+        return ordinalIndex().position(ordinal);
+    }
+
+    OrdinalIndex ordinalIndex() {
+        OrdinalIndex index = ordinals;
+        if (index == null) {
+            throw new IllegalStateException("Ordinal index is not enabled. Use withOrdinalIndex().");
+        }
+        return index;
+    }
+
+    /** Peek at object with given ordinal. Requires ordinal index. */
+    public <T> T peekOrdinal(long ordinal, Peeker<T> peeker) {
+        return peek(keyOf(ordinal), peeker);
+    }
+
+    /** @return true if list keeps ordinal index */
+    public boolean hasOrdinalIndex() {
+        return ordinals != null;
+    }
+
     public long getUsedSize() {
         return size.get();
     }
 
     public long getAllocatedSize() {
-        return buckets.size() * (long) bucketSize;
+        return buckets.allocated();
+    }
+
+    /** @return bytes left unused to keep objects within bucket or chunk */
+    public long getPaddingSize() {
+        return padding.get();
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+
+    /**
+     * Release memory of this list. Off heap buckets are released immediately,
+     * after readers currently peeking into list are done. Heap buckets are
+     * left to GC. If list has a bucket pool, buckets are returned to it instead.
+     * List is unusable after free.
+     */
+    public void free() {
+        freed = true;
+        if (!pinned()) return;
+        release();
+        if (file != null) file.delete();
+    }
+
+    /**
+     * Unmap and close file backing mapped list, keeping data stored in it.
+     * Other lists only release memory, as with {@link #free()}.
+     */
+    public void close() {
+        freed = true;
+        if (!pinned()) return;
+        release();
+    }
+
+    void release() {
+        while (readers.sum() > 0) {
+            Thread.yield();
+        }
+
+        synchronized (this) {
+            buckets.freeAll(this::releaseBucket);
+            if (channel == null) return;
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Can't close file: " + file, e);
+            }
+        }
+    }
+
+    /** Mark start of add, tracking writer if list can be compressed. */
+    void beginWrite() {
+        enter();
+        if (compression != null) writers.increment();
+    }
+
+    void endWrite() {
+        if (compression != null) writers.decrement();
+        exit();
+    }
+
+    /** @return true if readers are tracked, as memory is released or reused on free */
+    boolean pinned() {
+        return memory != Memory.HEAP || pool != null;
+    }
+
+    /** Mark off heap or pooled access, so memory isn't released under a reader. */
+    void enter() {
+        if (!pinned()) return;
+        readers.increment();
+        if (freed) {
+            readers.decrement();
+            throw new IllegalStateException("ByteList memory is already freed");
+        }
+    }
+
+    void exit() {
+        if (!pinned()) return;
+        readers.decrement();
     }
 
 
@@ -185,25 +916,92 @@ public class ByteList {
     }
 
 
-    @AllArgsConstructor
+    public <T> OrdinalIterator<T> iterator(Peeker<T> peeker, long fromOrdinal, long toOrdinal) {
+        return new OrdinalIterator<>(peeker, fromOrdinal, toOrdinal, false);
+    }
+
+    /** Iterate objects newest first. Requires ordinal index. */
+    public <T> OrdinalIterator<T> reverseIterator(Peeker<T> peeker) {
+        return new OrdinalIterator<>(peeker, 0, ordinalIndex().size(), true);
+    }
+
+    /** Iterate objects in ordinal range, from {@code toOrdinal - 1} down to {@code fromOrdinal}. */
+    public <T> OrdinalIterator<T> reverseIterator(Peeker<T> peeker, long fromOrdinal, long toOrdinal) {
+        return new OrdinalIterator<>(peeker, fromOrdinal, toOrdinal, true);
+    }
+
+
     public class DataIterator<T> implements Iterator<T> {
         Peeker<T> peeker;
         long objPos = 0;
+        /** data length of object at objPos, as read by hasNext, or -1 */
+        int length = -1;
+
+        public DataIterator(Peeker<T> peeker, long objPos) {
+            this.peeker = peeker;
+            this.objPos = objPos;
+        }
 
         public boolean hasNext() {
-            if (ByteList.this.buckets.size() == 0) {
-                return false;
+            while (true) {
+                // gaps may include whole buckets which are skipped and never allocated
+                if (bucketForPosition(objPos) != null) {
+                    int len = dataLength(objPos);
+                    if (len > 0) {
+                        length = len;
+                        return true;
+                    }
+                }
+
+                long next = skipGap(objPos);
+                if (next < 0) return false;
+                objPos = next;
             }
+        }
 
-            final int dataLength = dataLength(objPos);
-            return dataLength > 0;
+        public T next() {
+            enter();
+            try {
+                int len = length >= 0 ? length : readHeader(objPos);
+                T res = peek(objPos, len, peeker);
+                objPos += ObjHeader.headerSize(len) + len;
+                length = -1;
+                return res;
+            }
+            finally {
+                exit();
+            }
+        }
+    }
+
+
+    /**
+     * Iterator over range of ordinals {@code [fromOrdinal, toOrdinal)},
+     * either in order objects were added, or newest first.
+     */
+    public class OrdinalIterator<T> implements Iterator<T> {
+        final Peeker<T> peeker;
+        final long fromOrdinal;
+        final long toOrdinal;
+        final boolean reverse;
+        long ordinal;
+
+        OrdinalIterator(Peeker<T> peeker, long fromOrdinal, long toOrdinal, boolean reverse) {
+            this.peeker = peeker;
+            this.fromOrdinal = fromOrdinal;
+            this.toOrdinal = toOrdinal;
+            this.reverse = reverse;
+            this.ordinal = reverse ? toOrdinal - 1 : fromOrdinal;
+        }
+
+        public boolean hasNext() {
+            return reverse ? ordinal >= fromOrdinal : ordinal < toOrdinal;
         }
 
         public T next() {
-            T res = peek(objPos, peeker);
-            int len = dataLength(objPos);
-            int headerSize = ObjHeader.headerSize(len);
-            objPos += headerSize + len;
+            if (!hasNext()) throw new NoSuchElementException();
+            T res = peekOrdinal(ordinal, peeker);
+            ordinal += reverse ? -1 : 1;
             return res;
         }
     }
@@ -229,16 +1027,12 @@ public class ByteList {
      * Bits & bytes following is unsigned value stored in header. */
     static class ObjHeader {
 
-        static int headerSize(byte[] arr, int off) {
-            byte b = arr[off];
-            int headerLen = ((0xC0 & b) >>> 6) + 1;
-            return headerLen;
-        }
-
+        /** max data length, encoded in 4 byte header */
+        static final int MAX_LENGTH = 0x3FFF_FFFF;
 
         /* @return for given value return byte length of header */
         static int headerSize(int value) {
-            if (value < 0x3F) return 1;
+            if (value <= 0x3F) return 1;
             if (value <= 0x3FFF) return 2;
             if (value <= 0x3FFFFF) return 3;
             return 4;
@@ -251,41 +1045,5 @@ public class ByteList {
             if (value <= 0x3FFFFF) return 0x80_0000 | (0x3F_FFFF & value); // 4mb, 3 byte header
             return 0xC000_0000 | (0x3FFF_FFFF & value);            // 1gb, 4 byte header
         }
-
-        static void writeHeader(int val, byte[] top, byte[] bottom, int pos) {
-            int bytesSize = headerSize(val);
-            int header = header(val);
-            for (int off = 0; off < bytesSize; off++) {
-                byte b = (byte)(header >>> (8 * (bytesSize - 1 - off)));
-                int idx = pos + off;
-                byte[] des = top;
-                if (idx >= top.length) {
-                    idx = idx - top.length;
-                    des = bottom;
-                }
-                des[idx] = b;
-            }
-        }
-
-        static int readHeader(byte[] top, byte[] bottom, int pos) {
-            byte b = top[pos];
-            int val = 0x3F & b;
-            int headerLen = ((0xC0 & b) >>> 6) + 1;
-
-            for (int off = 1; off < headerLen; off++) {
-                byte[] src = top;
-                int idx = pos + off;
-                if (idx >= top.length) {
-                    idx = idx - top.length;
-                    src = bottom;
-                }
-                b = src[idx];
-
-                int shiftedVal = val << 8;
-                int maskedB = b & 0xFF;
-                val = shiftedVal | maskedB;
-            }
-            return val;
-        }
     }
 }
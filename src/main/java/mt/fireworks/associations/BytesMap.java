@@ -4,10 +4,13 @@ import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.eclipse.collections.api.iterator.LongIterator;
 import org.eclipse.collections.api.list.primitive.MutableLongList;
 import org.eclipse.collections.api.map.MutableMap;
+import org.eclipse.collections.api.map.primitive.MutableObjectLongMap;
 import org.eclipse.collections.impl.factory.primitive.LongLists;
 import org.eclipse.collections.impl.map.mutable.UnifiedMap;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectLongHashMapWithHashingStrategy;
 import org.eclipse.collections.impl.map.strategy.mutable.UnifiedMapWithHashingStrategy;
 
 import lombok.*;
@@ -22,12 +25,65 @@ public class BytesMap<T> implements AssociationMap<T> {
     final List<String> keys;
 
 
+    /**
+     * Key with single storage key is stored inline, as long value of singles
+     * map, and is promoted to list of map when second storage key is added.
+     */
     @Data @RequiredArgsConstructor
     static class Index<T> {
         @NonNull String name;
         @NonNull Function<T, byte[]> keyer;
 
         MutableMap<byte[], MutableLongList> map = new UnifiedMapWithHashingStrategy<>(new BytesHashingStrategy());
+        MutableObjectLongMap<byte[]> singles = new ObjectLongHashMapWithHashingStrategy<>(new BytesHashingStrategy());
+
+        /** count of keys promoted from singles to map */
+        long promotions;
+
+        void add(byte[] key, long storageKey) {
+            MutableLongList keyData = map.get(key);
+            if (keyData == null) {
+                if (!singles.containsKey(key)) {
+                    singles.put(key, storageKey);
+                    return;
+                }
+                keyData = LongLists.mutable.withInitialCapacity(2);
+                keyData.add(singles.removeKeyIfAbsent(key, 0));
+                map.put(key, keyData);
+                promotions++;
+            }
+            keyData.add(storageKey);
+        }
+
+        /** @return storage keys of key, or null if key is unknown */
+        MutableLongList get(byte[] key) {
+            MutableLongList keyData = map.get(key);
+            if (keyData != null) return keyData;
+            if (!singles.containsKey(key)) return null;
+            return LongLists.mutable.with(singles.get(key));
+        }
+
+        /** Remove storage keys of key, as found missing in storage. */
+        void removeAll(byte[] key, MutableLongList storageKeys) {
+            MutableLongList keyData = map.get(key);
+            if (keyData != null) {
+                keyData.removeAll(storageKeys);
+                return;
+            }
+            if (singles.containsKey(key) && storageKeys.contains(singles.get(key))) {
+                singles.remove(key);
+            }
+        }
+
+        /** @return number of keys stored inline */
+        int inlineKeys() {
+            return singles.size();
+        }
+
+        /** @return number of keys promoted to lists */
+        int promotedKeys() {
+            return map.size();
+        }
     }
 
     public static <T> AddSerdes<T> newInstance(Class<T> klazz) {
@@ -52,23 +108,33 @@ public class BytesMap<T> implements AssociationMap<T> {
 
     @Override
     public boolean add(T val) {
-        byte[] data = null;
+        boolean stored = false;
         long storageKey = 0;
 
         for (int idx = 0; idx < indexes.size(); idx++) {
             Index<T> index = indexes.get(idx);
             byte[] key = index.keyer.apply(val);
             if (key == null) continue;
-            if (data == null) {
-                data = serdes.marshall(val);
-                storageKey = byteList.add(data);
+            if (!stored) {
+                storageKey = store(val);
+                stored = true;
             }
 
-            MutableLongList keyData = index.map.getIfAbsentPut(key, () -> LongLists.mutable.withInitialCapacity(1));
-            keyData.add(storageKey);
+            index.add(key, storageKey);
         }
 
-        return data != null;
+        return stored;
+    }
+
+
+    /** Store value, marshalling it in place if serdes supports it. */
+    long store(T val) {
+        int size = serdes.sizeOf(val);
+        if (size >= 0) {
+            return byteList.add(size, (dest, pos, len) -> serdes.marshallInto(val, dest, pos));
+        }
+        byte[] data = serdes.marshall(val);
+        return byteList.add(data);
     }
 
 
@@ -116,7 +182,7 @@ public class BytesMap<T> implements AssociationMap<T> {
         byte[] key = index.getKeyer().apply(query);
         if (key == null) return Collections.emptyList();
 
-        MutableLongList strKeys = index.map.get(key);
+        MutableLongList strKeys = index.get(key);
         if (strKeys == null)   return Collections.emptyList();
         if (strKeys.isEmpty()) return Collections.emptyList();
 
@@ -138,7 +204,7 @@ public class BytesMap<T> implements AssociationMap<T> {
         }
 
         if (keysForRemoval != null && keysForRemoval.size() > 0) {
-            strKeys.removeAll(keysForRemoval);
+            index.removeAll(key, keysForRemoval);
             keysForRemoval.clear();
         }
 
@@ -163,14 +229,21 @@ public class BytesMap<T> implements AssociationMap<T> {
         Index<T> index = index(keyName);
         Collection<MutableLongList> values = index.map.values();
         Iterator<MutableLongList> valuesIter = values.iterator();
+        LongIterator singlesIter = index.singles.longIterator();
 
         Iterator<List<T>> result = new Iterator<List<T>>() {
             public boolean hasNext() {
-                return valuesIter.hasNext();
+                return valuesIter.hasNext() || singlesIter.hasNext();
             }
 
             @Override
             public List<T> next() {
+                if (!valuesIter.hasNext()) {
+                    byte[] data = byteList.get(singlesIter.next());
+                    T res = serdes.unmarshall(data);
+                    return res != null ? Collections.singletonList(res) : Collections.emptyList();
+                }
+
                 MutableLongList strKeys = valuesIter.next();
                 if (strKeys == null)   return Collections.emptyList();
                 if (strKeys.isEmpty()) return Collections.emptyList();
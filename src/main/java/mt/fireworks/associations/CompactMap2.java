@@ -62,6 +62,7 @@ public class CompactMap2<T> {
     final private ByteList[] segments;
     final private ReentrantLock[] segmentLocks;
     final private int segmentAllocationSize;
+    final private ByteList.Memory segmentMemory;
 
     final private SerDes<T> serdes;
     final private Function<T, byte[]> keyer;
@@ -86,11 +87,27 @@ public class CompactMap2<T> {
             int segCount, int segAllocationSize,
             SerDes<T> serdes, Function<T, byte[]> keyer,
             HashingStrategy<byte[]> hashingStrategy
+    ) {
+        this(segCount, segAllocationSize, serdes, keyer, hashingStrategy, ByteList.Memory.HEAP);
+    }
+
+
+    /**
+     * Map with segments stored in given memory. With {@link ByteList.Memory#OFF_HEAP}
+     * segment data is kept outside of java heap, and segment memory is released
+     * when segment is retired by compaction.
+     */
+    public CompactMap2(
+            int segCount, int segAllocationSize,
+            SerDes<T> serdes, Function<T, byte[]> keyer,
+            HashingStrategy<byte[]> hashingStrategy,
+            ByteList.Memory segmentMemory
     ) {
         this.segmentAllocationSize = segAllocationSize;
+        this.segmentMemory = segmentMemory;
         this.segments = new ByteList[segCount + 1];
         for (int i = 0; i < segCount; i++)
-            segments[i] = new ByteList(segAllocationSize);
+            segments[i] = new ByteList(segAllocationSize, segmentMemory);
 
         this.segmentLocks = new ReentrantLock[segCount + 1];
         for (int i = 0; i < this.segmentLocks.length; i++)
@@ -136,10 +153,28 @@ public class CompactMap2<T> {
     }
 
     public void put(final byte[] key, final T value) {
+        final int size = serdes.sizeOf(value);
+        if (size >= 0) {
+            putInPlace(key, value, size);
+            return;
+        }
         final byte[] data = serdes.marshall(value);
         putBytes(key, data);
     }
 
+    /** Marshall value directly into segment, without intermediate array. */
+    void putInPlace(final byte[] key, final T value, final int size) {
+        final int segIndex = lockWriteSegment();
+        @Cleanup("unlock")
+        final ReentrantLock segmentLock = segmentLocks[segIndex];
+        final ByteList segment = segments[segIndex];
+        final long objPos = segment.add(size, (dest, pos, len) -> serdes.marshallInto(value, dest, pos));
+        final long pointer = pointer(segIndex, objPos);
+        index.put(key, pointer);
+
+        rwBarrier++; // volatile write = release
+    }
+
     public void putBytes(final byte[] key, final byte[] marshalledT) {
         final int segIndex = lockWriteSegment();
         @Cleanup("unlock")
@@ -221,9 +256,17 @@ public class CompactMap2<T> {
 
         final ByteList segment = segments[segementIndex];
         if (segment == null) return null;
+        if (segment.freed) return null; // retired by compaction
 
-        final T res = segment.peek(objPos, peeker);
-        return res;
+        try {
+            final T res = segment.peek(objPos, peeker);
+            return res;
+        }
+        catch (IllegalStateException e) {
+            // segment was retired by compaction after freed check
+            if (segment.freed) return null;
+            throw e;
+        }
     }
 
 
@@ -311,12 +354,19 @@ public class CompactMap2<T> {
         final long start = System.nanoTime();
 
 
+        final ByteList[] retired = new ByteList[segments.length];
         for (int readSegIdx = 0; readSegIdx < segments.length; readSegIdx++) {
             if (readSegIdx == initialEmptySegment) continue;
-            compactOneSegment(readSegIdx, writeSegmentIndex);
+            retired[readSegIdx] = compactOneSegment(readSegIdx, writeSegmentIndex);
             writeSegmentIndex = readSegIdx;
         }
 
+        // retired segments are released once whole pass is done, giving
+        // readers holding old pointers time to finish
+        for (ByteList seg: retired) {
+            if (seg != null) seg.free();
+        }
+
         final long end = System.nanoTime();
         final long dur = end - start;
 
@@ -329,7 +379,8 @@ public class CompactMap2<T> {
     }
 
 
-    void compactOneSegment(final int readSegIdx, final int writeSegIdx) {
+    /** @return retired read segment */
+    ByteList compactOneSegment(final int readSegIdx, final int writeSegIdx) {
         if (segments[writeSegIdx] != null) {
             throw new RuntimeException("Write segment is not empty: " + writeSegIdx);
         }
@@ -348,7 +399,7 @@ public class CompactMap2<T> {
 
 
         final ByteList readSegment = segments[readSegIdx];
-        final ByteList writeSegment = new ByteList(segmentAllocationSize);
+        final ByteList writeSegment = new ByteList(segmentAllocationSize, segmentMemory);
         segments[writeSegIdx] = writeSegment;
 
         readSegment.forEach((objPos, bucket, pos, len) -> {
@@ -379,6 +430,7 @@ public class CompactMap2<T> {
         });
 
         segments[readSegIdx] = null;
+        return readSegment;
     }
 
 
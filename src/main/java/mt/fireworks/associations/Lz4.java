@@ -0,0 +1,191 @@
+package mt.fireworks.associations;
+
+/**
+ * Block codec of LZ4 family, used to compress sealed {@link ByteList} buckets.
+ *
+ * <p>Output follows LZ4 block format: sequence of tokens, each holding
+ * a run of literals followed by a match copied from already decoded data.
+ * Token high nibble is literal count, low nibble is match length minus 4,
+ * and value 15 in either is continued in following bytes. Match offset is
+ * 2 bytes little endian, so matches reach back at most 64 Kb. Last sequence
+ * holds literals only.
+ *
+ * <p>Compressor is greedy, with single entry hash table of 4 byte sequences.
+ */
+final class Lz4 {
+
+    static final int MIN_MATCH = 4;
+    static final int HASH_LOG = 12;
+    static final int MAX_OFFSET = 0xFFFF;
+    /** last bytes of block are always literals */
+    static final int LAST_LITERALS = 5;
+    /** last match has to start this far from end of block */
+    static final int MF_LIMIT = 12;
+
+    private Lz4() {
+    }
+
+
+    /** @return max size of compressed block of given length */
+    static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+
+    /**
+     * Compress {@code len} bytes of {@code src} to {@code dst}, which has to
+     * hold at least {@link #maxCompressedLength(int)} bytes.
+     *
+     * @return length of compressed data
+     */
+    static int compress(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        final int end = srcOff + len;
+        final int matchLimit = end - LAST_LITERALS;
+        final int mfLimit = end - MF_LIMIT;
+        final int[] table = new int[1 << HASH_LOG]; // position + 1, 0 is empty
+
+        int ip = srcOff;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        while (ip < mfLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+
+            // extend match backwards over pending literals
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                matchLen++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        op = writeLiterals(src, anchor, end - anchor, dst, op);
+        return op - dstOff;
+    }
+
+
+    /**
+     * Decompress block into {@code dst}.
+     *
+     * @return length of decompressed data
+     * @throws RuntimeException if block is malformed or doesn't fit in {@code dstLen} bytes
+     */
+    static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        final int end = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    litLen += b;
+                } while (b == 255);
+            }
+            if (op + litLen > dstEnd || ip + litLen > end) {
+                throw new RuntimeException("Malformed compressed block, literals out of bounds at: " + (ip - srcOff));
+            }
+            System.arraycopy(src, ip, dst, op, litLen);
+            ip += litLen;
+            op += litLen;
+
+            if (ip >= end) break;
+
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+
+            int matchLen = token & 0x0F;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOff || op + matchLen > dstEnd) {
+                throw new RuntimeException("Malformed compressed block, match out of bounds at: " + (ip - srcOff));
+            }
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, op, matchLen);
+            }
+            else {
+                // overlapping match repeats last offset bytes
+                for (int i = 0; i < matchLen; i++) {
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += matchLen;
+        }
+
+        return op - dstOff;
+    }
+
+
+    static int writeSequence(byte[] src, int litPos, int litLen, int offset, int matchLen, byte[] dst, int op) {
+        int tokenPos = op++;
+        int ml = matchLen - MIN_MATCH;
+        int token = (Math.min(litLen, 15) << 4) | Math.min(ml, 15);
+        dst[tokenPos] = (byte) token;
+
+        op = writeLength(litLen, dst, op);
+        System.arraycopy(src, litPos, dst, op, litLen);
+        op += litLen;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        op = writeLength(ml, dst, op);
+        return op;
+    }
+
+    static int writeLiterals(byte[] src, int litPos, int litLen, byte[] dst, int op) {
+        dst[op++] = (byte) (Math.min(litLen, 15) << 4);
+        op = writeLength(litLen, dst, op);
+        System.arraycopy(src, litPos, dst, op, litLen);
+        return op + litLen;
+    }
+
+    /** write continuation of length which didn't fit in token nibble */
+    static int writeLength(int len, byte[] dst, int op) {
+        if (len < 15) return op;
+        len -= 15;
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+    }
+
+    static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
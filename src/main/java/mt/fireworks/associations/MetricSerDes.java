@@ -26,6 +26,21 @@ class MetricSerDes<T> implements SerDes<T>, Metrics {
     }
     
     
+    @Override
+    public int sizeOf(T val) {
+        return delegate.sizeOf(val);
+    }
+
+    @Override
+    public void marshallInto(T val, byte[] dest, int offset) {
+        long d = -System.nanoTime();
+        delegate.marshallInto(val, dest, offset);
+        d += System.nanoTime();
+        marshallCount.incrementAndGet();
+        marshallTime.addAndGet(d);
+    }
+    
+    
     final AtomicLong unmarshallCount = new AtomicLong();
     final AtomicLong unmarshallTime = new AtomicLong();
 
@@ -0,0 +1,138 @@
+package mt.fireworks.associations;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Positions of {@link ByteList} objects in order they were added. Ordinal
+ * of object is its index in this table.
+ *
+ * <p>Table is split in pages of {@code PAGE_SIZE} objects. Page holds one
+ * long base position, and an int delta from base for each object, thus
+ * table costs about 4 bytes per object. Objects too far from base for an
+ * int delta are stored in a long array of page, created on demand.
+ *
+ * <p>Writers reserve ordinal with one atomic increment, and publish delta
+ * with volatile write. Reader of reserved but not yet published ordinal
+ * waits for writer to publish it. Pages are created, and page table grown,
+ * under lock once per {@code PAGE_SIZE} objects.
+ */
+class OrdinalIndex {
+
+    static final int PAGE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** marks delta which is stored in long array of page */
+    static final int WIDE = Integer.MIN_VALUE;
+
+    static class Page {
+        final long base;
+        /** delta + 1 for positive deltas, so 0 marks unpublished entry */
+        final AtomicIntegerArray deltas = new AtomicIntegerArray(PAGE_SIZE);
+        volatile AtomicLongArray wide;
+
+        Page(long base) {
+            this.base = base;
+        }
+    }
+
+    volatile AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(16);
+    final AtomicLong count = new AtomicLong();
+
+
+    /** Register object at position. @return ordinal of object */
+    long add(long objPos) {
+        long ordinal = count.getAndIncrement();
+        int pageIndex = (int) (ordinal >>> PAGE_BITS);
+        int idx = (int) (ordinal & PAGE_MASK);
+        Page page = pageForWrite(pageIndex, objPos);
+
+        long delta = objPos - page.base;
+        if (delta >= 0 && delta < Integer.MAX_VALUE) {
+            page.deltas.set(idx, (int) delta + 1);
+        }
+        else if (delta < 0 && delta > WIDE) {
+            page.deltas.set(idx, (int) delta);
+        }
+        else {
+            wide(page).set(idx, objPos);
+            page.deltas.set(idx, WIDE);
+        }
+        return ordinal;
+    }
+
+
+    /** @return position of object with given ordinal */
+    long position(long ordinal) {
+        if (ordinal < 0 || ordinal >= count.get()) {
+            throw new IndexOutOfBoundsException("Ordinal: " + ordinal + ", size: " + count.get());
+        }
+
+        int pageIndex = (int) (ordinal >>> PAGE_BITS);
+        int idx = (int) (ordinal & PAGE_MASK);
+
+        Page page;
+        while ((page = page(pageIndex)) == null) {
+            Thread.yield(); // writer of ordinal is creating page
+        }
+
+        int delta;
+        while ((delta = page.deltas.get(idx)) == 0) {
+            Thread.yield(); // writer of ordinal is publishing it
+        }
+
+        if (delta == WIDE) return page.wide.get(idx);
+        if (delta > 0) return page.base + delta - 1;
+        return page.base + delta;
+    }
+
+
+    /** @return number of objects in table */
+    long size() {
+        return count.get();
+    }
+
+
+    Page page(int pageIndex) {
+        AtomicReferenceArray<Page> p = pages;
+        if (pageIndex >= p.length()) return null;
+        return p.get(pageIndex);
+    }
+
+    Page pageForWrite(int pageIndex, long base) {
+        Page page = page(pageIndex);
+        if (page != null) return page;
+
+        synchronized (this) {
+            AtomicReferenceArray<Page> p = pages;
+            if (pageIndex >= p.length()) {
+                int len = Math.max(2 * p.length(), pageIndex + 1);
+                AtomicReferenceArray<Page> grown = new AtomicReferenceArray<>(len);
+                for (int i = 0; i < p.length(); i++) {
+                    grown.set(i, p.get(i));
+                }
+                pages = grown;
+                p = grown;
+            }
+
+            page = p.get(pageIndex);
+            if (page == null) {
+                page = new Page(base);
+                p.set(pageIndex, page);
+            }
+            return page;
+        }
+    }
+
+    AtomicLongArray wide(Page page) {
+        AtomicLongArray w = page.wide;
+        if (w != null) return w;
+        synchronized (page) {
+            if (page.wide == null) page.wide = new AtomicLongArray(PAGE_SIZE);
+            return page.wide;
+        }
+    }
+}
@@ -45,8 +45,36 @@ public interface SerDes<T> {
     }
     
     
+    /**
+     * Size of marshalled object, used to marshall object directly into storage
+     * with {@link #marshallInto(Object, byte[], int)}, without intermediate array.
+     *
+     * Default implementation doesn't support in place marshalling and
+     * returns -1, in which case {@link #marshall(Object)} is used.
+     *
+     * @return length of marshalled object in bytes, or -1 if not supported
+     */
+    default int sizeOf(T val) {
+        return -1;
+    }
+
+
+    /**
+     * In place marshaller. Writes exactly {@link #sizeOf(Object)} bytes
+     * of marshalled object to {@code dest} starting at {@code offset}.
+     * Has to be implemented if {@link #sizeOf(Object)} is.
+     *
+     * @param val - object to marshall
+     * @param dest - destination array, usually storage bucket
+     * @param offset - offset in dest
+     */
+    default void marshallInto(T val, byte[] dest, int offset) {
+        throw new UnsupportedOperationException("In place marshalling is not supported by: " + getClass().getName());
+    }
+
+
     default SerDes<T> withMetric() {
         return new MetricSerDes<>(this);
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
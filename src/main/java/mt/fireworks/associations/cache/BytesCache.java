@@ -1,17 +1,22 @@
 package mt.fireworks.associations.cache;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
 
 import org.eclipse.collections.api.collection.primitive.MutableLongCollection;
-import org.eclipse.collections.api.list.primitive.LongList;
-import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.impl.factory.primitive.LongLists;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
+import org.eclipse.collections.impl.factory.primitive.LongSets;
 import org.eclipse.collections.impl.map.mutable.UnifiedMap;
 
 import lombok.*;
 import mt.fireworks.associations.AssociationCache;
+import mt.fireworks.associations.ByteList.Peeker;
+import mt.fireworks.associations.ByteList.Writer;
 import mt.fireworks.associations.cache.BytesCacheBuilder.AddSerdes;
 import mt.fireworks.associations.cache.Storage.Window;
 
@@ -29,6 +34,13 @@ public class BytesCache<T> implements AssociationCache<T> {
     /** enabled/disable check if data is already stored in cache */
     @Setter boolean checkForDuplicates = false;
 
+    /** background eviction of removed windows, null if tick evicts */
+    ExecutorService evictor;
+    long evictionSliceNanos;
+
+    /** ticks cache on window boundaries, null if ticked by user */
+    TickScheduler scheduler;
+
     @Getter
     final BytesKeyedCacheMetrics metrics = new BytesKeyedCacheMetrics();
 
@@ -42,6 +54,19 @@ public class BytesCache<T> implements AssociationCache<T> {
         metrics.addCount.incrementAndGet();
 
         long tstamp = serdes2.timestampOfT(val);
+        byte[][] indexKeys = storage.conf.recordEnvelope ? indexKeys(val) : null;
+
+        int size = checkForDuplicates ? -1 : serdes2.sizeOf(val);
+        if (size >= 0) {
+            long key = storage.addEntry(tstamp, indexKeys, val, size, serdes2);
+            if (key == 0) {
+                dropped(tstamp);
+                return false;
+            }
+            putIndexes(val, indexKeys, key);
+            return true;
+        }
+
         byte[] data = serdes2.marshall(val);
 
 
@@ -59,17 +84,104 @@ public class BytesCache<T> implements AssociationCache<T> {
             }
         }
 
-        long key = storage.addEntry(tstamp, data);
+        long key = storage.addEntry(tstamp, indexKeys, data);
         if (key == 0) {
+            dropped(tstamp);
             return false;
         }
 
-        for (Index<T> i: indexes) {
-            boolean added = i.put(val, key);
-        }
-        
+        putIndexes(val, indexKeys, key);
         return true;
     }
+
+
+    /**
+     * Add batch of values. Values are marshalled in place where serdes
+     * supports it, space of each window is reserved once per batch, and
+     * index updates are grouped by index shard, so each shard is locked once
+     * per batch. With duplicate check, values are added one by one.
+     *
+     * @return for each value, true if it is added, false if it is dropped or duplicate
+     */
+    public boolean[] addAll(Collection<T> vals) {
+        @SuppressWarnings("unchecked")
+        T[] arr = (T[]) vals.toArray();
+        return addAll(arr);
+    }
+
+    /** @see #addAll(Collection) */
+    public boolean[] addAll(T[] vals) {
+        boolean[] added = new boolean[vals.length];
+        if (checkForDuplicates) {
+            for (int idx = 0; idx < vals.length; idx++) {
+                added[idx] = add(vals[idx]);
+            }
+            return added;
+        }
+
+        metrics.addCount.addAndGet(vals.length);
+        metrics.batchCount.incrementAndGet();
+
+        long[] tstamps = new long[vals.length];
+        byte[][][] keys = new byte[vals.length][][];
+        int[] lengths = new int[vals.length];
+        Writer[] writers = new Writer[vals.length];
+        for (int idx = 0; idx < vals.length; idx++) {
+            T val = vals[idx];
+            tstamps[idx] = serdes2.timestampOfT(val);
+            keys[idx] = indexKeys(val);
+
+            int size = serdes2.sizeOf(val);
+            if (size >= 0) {
+                lengths[idx] = size;
+                writers[idx] = (dest, pos, len) -> serdes2.marshallInto(val, dest, pos);
+            }
+            else {
+                byte[] data = serdes2.marshall(val);
+                lengths[idx] = data.length;
+                writers[idx] = (dest, pos, len) -> System.arraycopy(data, 0, dest, pos, len);
+            }
+        }
+
+        long[] storageKeys = storage.addEntries(tstamps, keys, lengths, writers);
+        for (int idx = 0; idx < vals.length; idx++) {
+            added[idx] = storageKeys[idx] != 0;
+            if (!added[idx]) dropped(tstamps[idx]);
+        }
+
+        byte[][] indexKeys = new byte[vals.length][];
+        for (int i = 0; i < indexes.length; i++) {
+            for (int idx = 0; idx < vals.length; idx++) {
+                indexKeys[idx] = keys[idx][i];
+            }
+            indexes[i].putKeys(indexKeys, storageKeys);
+        }
+        return added;
+    }
+
+
+    /** Count write dropped as there is no window for its tstamp. */
+    void dropped(long tstamp) {
+        if (tstamp >= storage.nowWindow.startTstamp) metrics.droppedAhead.incrementAndGet();
+        else metrics.droppedBehind.incrementAndGet();
+    }
+
+
+    /** @return association key of val for each index, in index order */
+    byte[][] indexKeys(T val) {
+        byte[][] keys = new byte[indexes.length][];
+        for (int idx = 0; idx < indexes.length; idx++) {
+            keys[idx] = indexes[idx].getKeyer().apply(val);
+        }
+        return keys;
+    }
+
+    void putIndexes(T val, byte[][] indexKeys, long key) {
+        for (int idx = 0; idx < indexes.length; idx++) {
+            if (indexKeys != null) indexes[idx].putKey(indexKeys[idx], key);
+            else indexes[idx].put(val, key);
+        }
+    }
     
     
     @Override
@@ -187,44 +299,45 @@ public class BytesCache<T> implements AssociationCache<T> {
         byte[] key = index.getKeyer().apply(query);
         if (key == null) return null;
 
-
-        //
-        // FIXME index should already have immutable long list
-        //       which is updated on put. Move cost of thread
-        //       safety to put side of index
-        //
-        MutableLongList storageKeysMut = index.get(query);
-        if (storageKeysMut == null)   return Collections.emptyList();
-        if (storageKeysMut.isEmpty()) return Collections.emptyList();
-        LongList strKeys = storageKeysMut.toImmutable();
-
-        final int size = strKeys.size();
-
-        MutableLongList keysForRemoval = null;
-        final ArrayList<T> result = new ArrayList<>(countLast > 0 ? countLast : size);
-        
-        final long from = fromInclusive != null ? fromInclusive.longValue() / 1000l * 1000l : 0;
-        final long to = toExclusive != null ? toExclusive.longValue()     / 1000l * 1000l + 1000l : 0;
-        
-        final int startIdx = countLast > 0 && countLast < size ? size - countLast : 0;
-        
-        for (int jdx = startIdx; jdx < size; jdx++) {
-            long strKey = strKeys.get(jdx);
-            long tstamp = timeKeys.tstamp(strKey);
-
-            if (fromInclusive != null && tstamp < from) continue;
-            if (toExclusive != null && tstamp > to) continue;
+        // snapshot is immutable, writers publish new one
+        Postings.Snapshot strKeys = index.get(query, fromInclusive, toExclusive);
+        if (strKeys == null)   return Collections.emptyList();
+        if (strKeys.isEmpty()) return Collections.emptyList();
+
+        // keys are ordered by storage key, whose high bits are tstamp,
+        // so keys within time range are a contiguous slice
+        final long from = fromInclusive != null ? timeKeys.floor(fromInclusive) : 0;
+        final long to = toExclusive != null ? timeKeys.ceil(toExclusive) : 0;
+        final int lo = fromInclusive != null ? strKeys.lowerBound(timeKeys.lowestKey(from)) : 0;
+        final int hi = toExclusive != null ? strKeys.lowerBound(timeKeys.lowestKey(to)) : strKeys.size();
+        if (lo >= hi) return Collections.emptyList();
+
+        // millisecond keys bound slice exactly, otherwise records of first
+        // and last second are checked against range
+        final boolean recheck = !timeKeys.isExact() && (fromInclusive != null || toExclusive != null);
+
+        MutableLongSet keysForRemoval = null;
+        final int size = hi - lo;
+        final boolean last = countLast > 0 && countLast < size;
+        final ArrayList<T> result = new ArrayList<>(last ? countLast : size);
+
+        // last entries are read from end of slice, until count of them is found.
+        // cursor decodes each packed chunk of postings once, in either direction
+        Postings.Cursor cursor = strKeys.cursor();
+        for (int n = 0; n < size; n++) {
+            if (last && result.size() == countLast) break;
+            long strKey = cursor.get(last ? hi - 1 - n : lo + n);
 
             T res = storage.getEntry2(strKey, serdes2);
             if (res == null) {
                 if (keysForRemoval == null) {
-                    keysForRemoval = LongLists.mutable.empty();
+                    keysForRemoval = LongSets.mutable.empty();
                 }
                 keysForRemoval.add(strKey);
                 continue;
             }
 
-            if (fromInclusive != null || toExclusive != null) {
+            if (recheck) {
                 long timestamp = serdes2.timestampOfT(res);
                 if (fromInclusive != null && timestamp < fromInclusive) continue;
                 if (toExclusive != null && timestamp >= toExclusive) continue;
@@ -232,10 +345,10 @@ public class BytesCache<T> implements AssociationCache<T> {
 
             result.add(res);
         }
+        if (last) Collections.reverse(result);
 
         if (keysForRemoval != null && keysForRemoval.size() > 0) {
-            storageKeysMut.removeAll(keysForRemoval);
-            keysForRemoval.clear();
+            index.removeKeys(key, keysForRemoval);
         }
 
         return result;
@@ -248,32 +361,238 @@ public class BytesCache<T> implements AssociationCache<T> {
         metrics.tickCount.incrementAndGet();
         metrics.lastTickStart.set( System.currentTimeMillis() );
         long start = System.nanoTime();
-        metrics.lastWindowSize.set(0);
 
         // add new and, remove obsolete window from storage
         Window removedWindow = storage.moveWindows();
 
-        // clean indexes
-        long endTstamp = removedWindow.endTstamp;
-        removedWindow.store.forEach((objPos, bucket, pos, len) -> {
-            metrics.lastWindowSize.incrementAndGet();
-            T obj = serdes2.unmarshall(bucket, pos, len);
-            for(Index<T> idx: indexes) {
-                idx.clearKey(obj, endTstamp);
-            }
-            return null;
-        });
+        if (evictor != null) {
+            // removed window is already invisible to reads, clean up after it in background
+            metrics.evictionPending.incrementAndGet();
+            evictor.execute(() -> evict(removedWindow, evictionSliceNanos));
+        }
+        else {
+            evict(removedWindow, 0);
+        }
+
+        long end = System.nanoTime();
+        long duration = end - start;
+        metrics.lastTickDuration.set( duration );
+    }
 
 
+    /**
+     * Clean indexes of window removed from storage, and release its memory.
+     * With slice budget work is done in slices of about that many nanoseconds,
+     * each followed by pause of same length, so eviction never holds index
+     * maps for long.
+     *
+     * @param sliceNanos - slice budget, 0 for all at once
+     */
+    void evict(Window removedWindow, long sliceNanos) {
+        long start = System.nanoTime();
+        metrics.lastWindowSize.set(0);
+        metrics.evictionRecordsLeft.set(removedWindow.store.size());
+        EvictionSlicer slicer = new EvictionSlicer(sliceNanos);
+
+        // clean indexes, partitioned indexes just drop window partition
+        boolean scan = false;
         for(Index<T> idx: indexes) {
-            idx.removeEmptyEntries();
+            scan |= !idx.isPartitioned();
+        }
+
+        long endTstamp = removedWindow.endTstamp;
+        if (scan && storage.conf.recordEnvelope) {
+            // keys are in record envelope, no need to unmarshall
+            long avoidedCost = unmarshallAndKeyerCost();
+            evictRecords(removedWindow, slicer, (objPos, bucket, pos, len) -> {
+                for (int idx = 0; idx < indexes.length; idx++) {
+                    if (indexes[idx].isPartitioned()) continue;
+                    indexes[idx].clearAssociation(RecordEnvelope.key(bucket, pos, idx), endTstamp);
+                }
+                return null;
+            });
+            metrics.envelopeSavedTime.addAndGet(avoidedCost * metrics.lastWindowSize.get());
+        }
+        else if (scan) {
+            evictRecords(removedWindow, slicer, (objPos, bucket, pos, len) -> {
+                T obj = serdes2.unmarshall(bucket, pos, len);
+                for(Index<T> idx: indexes) {
+                    if (!idx.isPartitioned()) idx.clearKey(obj, endTstamp);
+                }
+                return null;
+            });
+        }
+        else {
+            metrics.lastWindowSize.set(removedWindow.store.size());
         }
+        metrics.evictionRecordsLeft.set(0);
+
+        for(Index<T> idx: indexes) {
+            if (idx.isPartitioned()) {
+                idx.dropWindow(removedWindow);
+                continue;
+            }
+            for (int shard = 0; shard < idx.shardCount(); shard++) {
+                idx.removeEmptyEntries(shard);
+                slicer.check();
+            }
+        }
+        slicer.done();
+
+        // indexes no longer point to removed window, release its memory
+        // once readers which still hold it leave
+        storage.retire(removedWindow);
+
+        // history windows are mostly read, keep them compressed
+        storage.compressHistory();
 
         long count = metrics.lastWindowSize.get();
         metrics.objectsRemovedTotal.addAndGet(count);
-        long end = System.nanoTime();
-        long duration = end - start;
-        metrics.lastTickDuration.set( duration );
+        metrics.lastEvictionDuration.set(System.nanoTime() - start);
+        if (sliceNanos > 0) metrics.evictionPending.decrementAndGet();
+    }
+
+    void evictRecords(Window removedWindow, EvictionSlicer slicer, Peeker<Void> cleaner) {
+        Iterator<Void> iter = removedWindow.store.iterator(cleaner);
+        while (iter.hasNext()) {
+            iter.next();
+            metrics.lastWindowSize.incrementAndGet();
+            metrics.evictionRecordsLeft.decrementAndGet();
+            slicer.check();
+        }
+    }
+
+
+    /** Splits eviction in time budgeted slices, and reports slice latency. */
+    class EvictionSlicer {
+        final long budget;
+        long sliceStart = System.nanoTime();
+
+        EvictionSlicer(long budget) {
+            this.budget = budget;
+        }
+
+        /** Pause if slice budget is spent. */
+        void check() {
+            if (budget <= 0) return;
+            long now = System.nanoTime();
+            if (now - sliceStart < budget) return;
+            sliced(now - sliceStart);
+            LockSupport.parkNanos(budget);
+            sliceStart = System.nanoTime();
+        }
+
+        /** Report last slice. */
+        void done() {
+            if (budget <= 0) return;
+            sliced(System.nanoTime() - sliceStart);
+        }
+
+        void sliced(long duration) {
+            metrics.evictionSlices.incrementAndGet();
+            metrics.lastSliceDuration.set(duration);
+            metrics.maxSliceDuration.accumulateAndGet(duration, Math::max);
+        }
+    }
+
+
+    /**
+     * Tick cache from internal scheduler, within given lag after end of now window.
+     */
+    void autoTick(long lagMs) {
+        scheduler = new TickScheduler(this, lagMs, System::currentTimeMillis);
+        scheduler.start();
+    }
+
+
+    /**
+     * Evict windows removed on tick in background thread, in slices of
+     * given budget. Tick then only rotates windows.
+     */
+    void backgroundEviction(long sliceNanos) {
+        if (sliceNanos <= 0) throw new IllegalArgumentException("Eviction slice has to be positive: " + sliceNanos);
+        this.evictionSliceNanos = sliceNanos;
+        this.evictor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "bytes-cache-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    /**
+     * Estimate of time tick would spend per record to unmarshall it and
+     * compute keys of unpartitioned indexes, from serdes and keyer metrics.
+     * @return nanoseconds per record, 0 if metrics are disabled
+     */
+    long unmarshallAndKeyerCost() {
+        long cost = 0;
+        if (serdes2 instanceof MetricSerDes2) {
+            MetricSerDes2<T> m = (MetricSerDes2<T>) serdes2;
+            long count = m.inPlaceUnmarshallCount.get();
+            if (count > 0) cost += m.inPlaceUnmarshallTime.get() / count;
+        }
+        for (Index<T> idx: indexes) {
+            if (idx.isPartitioned() || !(idx.getKeyer() instanceof MetricKeyer)) continue;
+            MetricKeyer<?, ?> m = (MetricKeyer<?, ?>) idx.getKeyer();
+            long count = m.counter.get();
+            if (count > 0) cost += m.duration.get() / count;
+        }
+        return cost;
+    }
+
+
+    /**
+     * Rebuild indexes from data present in storage. Used when storage
+     * windows are restored from files.
+     */
+    void reindex() {
+        if (storage.conf.recordEnvelope) {
+            for (Window win: storage.windows()) {
+                win.store.forEach((objPos, bucket, pos, len) -> {
+                    long key = timeKeys.key(RecordEnvelope.tstamp(bucket, pos), objPos);
+                    for (int idx = 0; idx < indexes.length; idx++) {
+                        indexes[idx].putKey(RecordEnvelope.key(bucket, pos, idx), key);
+                    }
+                    return null;
+                });
+            }
+            return;
+        }
+
+        for (Window win: storage.windows()) {
+            win.store.forEach((objPos, bucket, pos, len) -> {
+                T obj = serdes2.unmarshall(bucket, pos, len);
+                long tstamp = serdes2.timestampOfT(obj);
+                long key = timeKeys.key(tstamp, objPos);
+                for (Index<T> i: indexes) {
+                    i.put(obj, key);
+                }
+                return null;
+            });
+        }
+    }
+
+
+    /**
+     * Close cache storage. Memory mapped windows are unmapped and their
+     * files kept, so cache can be restored on next start.
+     */
+    public void close() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        if (evictor != null) {
+            // wait for pending evictions
+            evictor.shutdown();
+            try {
+                while (!evictor.awaitTermination(1, TimeUnit.SECONDS));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        storage.close();
     }
 
 
@@ -297,6 +616,16 @@ public class BytesCache<T> implements AssociationCache<T> {
     }
 
 
+    /**
+     * Newest values stored to window containing tstamp, newest first.
+     * Fast with ordinal index, otherwise whole window is read.
+     * @see BytesCacheBuilder.Build#ordinalIndex()
+     */
+    public List<T> latest(long tstamp, int count) {
+        return storage.latestEntries(tstamp, count, (objPos, bucket, pos, len) -> serdes2.unmarshall(bucket, pos, len));
+    }
+
+
     @Override
     public Iterator<T> values() {
         Iterator<T> valueIter = storage.iterator((objPos, bucket, pos, len) -> serdes2.unmarshall(bucket, pos, len));
@@ -328,6 +657,7 @@ public class BytesCache<T> implements AssociationCache<T> {
         long startTstamp = System.currentTimeMillis();
 
         final AtomicLong addCount = new AtomicLong();
+        final AtomicLong batchCount = new AtomicLong();
         final AtomicLong foundDuplicateCount = new AtomicLong();
 
         final AtomicLong getCount = new AtomicLong();
@@ -338,6 +668,23 @@ public class BytesCache<T> implements AssociationCache<T> {
         final AtomicLong lastWindowSize = new AtomicLong();
         final AtomicLong lastTickStart = new AtomicLong();
         final AtomicLong lastTickDuration = new AtomicLong();
+        final AtomicLong envelopeSavedTime = new AtomicLong();
+
+        final AtomicLong droppedAhead = new AtomicLong();
+        final AtomicLong droppedBehind = new AtomicLong();
+
+        final AtomicLong scheduledTicks = new AtomicLong();
+        final AtomicLong lateTicks = new AtomicLong();
+        final AtomicLong failedTicks = new AtomicLong();
+        final AtomicLong lastTickLateness = new AtomicLong();
+        final AtomicLong maxTickLateness = new AtomicLong();
+
+        final AtomicLong lastEvictionDuration = new AtomicLong();
+        final AtomicLong evictionPending = new AtomicLong();
+        final AtomicLong evictionRecordsLeft = new AtomicLong();
+        final AtomicLong evictionSlices = new AtomicLong();
+        final AtomicLong lastSliceDuration = new AtomicLong();
+        final AtomicLong maxSliceDuration = new AtomicLong();
 
 
 
@@ -355,6 +702,9 @@ public class BytesCache<T> implements AssociationCache<T> {
               .append(" (including ").append(foundDuplicateCount.get()).append(" duplicates)")
               .append(comments ? "    // number of cache writes\n" : "\n");
 
+            sb.append("   batchCount: ").append(batchCount.get())
+              .append(comments ? "    // number of batch writes, by addAll\n" : "\n");
+
             sb.append("     getCount: ").append(getCount.get())
                .append(comments ? "    // number of cache reads\n" : "\n");
 
@@ -373,6 +723,37 @@ public class BytesCache<T> implements AssociationCache<T> {
             sb.append("tick duration: ").append(durStr)
               .append(comments ? "    // last tick duration " : "");
 
+            sb.append("\n      dropped: ").append(droppedAhead.get()).append(" ahead, ")
+              .append(droppedBehind.get()).append(" behind")
+              .append(comments ? "    // writes without window, ahead or behind now window" : "");
+
+            if (scheduledTicks.get() > 0) {
+                sb.append("\n    scheduled: ").append(scheduledTicks.get()).append(" ticks, ")
+                  .append(lateTicks.get()).append(" over lag, ")
+                  .append(failedTicks.get()).append(" failed")
+                  .append(comments ? "    // ticks of internal scheduler" : "");
+                sb.append("\n     lateness: ").append(lastTickLateness.get()).append(" ms, max: ")
+                  .append(maxTickLateness.get()).append(" ms")
+                  .append(comments ? "    // tick start after window boundary" : "");
+            }
+
+            if (evictionSlices.get() > 0 || evictionPending.get() > 0) {
+                sb.append("\n     eviction: ").append(evictionPending.get()).append(" windows pending, ")
+                  .append(evictionRecordsLeft.get()).append(" records left")
+                  .append(comments ? "    // background eviction progress" : "");
+                sb.append("\n       slices: ").append(evictionSlices.get())
+                  .append(", last: ").append(TimeUtils.toReadable(lastSliceDuration.get()))
+                  .append(", max: ").append(TimeUtils.toReadable(maxSliceDuration.get()));
+                sb.append("\nlast eviction: ").append(TimeUtils.toReadable(lastEvictionDuration.get()))
+                  .append(comments ? "    // including pauses between slices" : "");
+            }
+
+            long saved = envelopeSavedTime.get();
+            if (saved > 0) {
+                sb.append("\n   tick saved: ~").append(TimeUtils.toReadable(saved))
+                  .append(comments ? "    // unmarshall and keyer time avoided by record envelope" : "");
+            }
+
             return sb.toString();
         }
 
@@ -386,10 +767,23 @@ public class BytesCache<T> implements AssociationCache<T> {
             lastWindowSize.set(0);
             lastTickStart.set(0);
             lastTickDuration.set(0);
+            envelopeSavedTime.set(0);
+            droppedAhead.set(0);
+            droppedBehind.set(0);
+            scheduledTicks.set(0);
+            lateTicks.set(0);
+            failedTicks.set(0);
+            lastTickLateness.set(0);
+            maxTickLateness.set(0);
+            lastEvictionDuration.set(0);
+            evictionSlices.set(0);
+            lastSliceDuration.set(0);
+            maxSliceDuration.set(0);
 
             getCount.set(0);
             trxGetCount.set(0);
             addCount.set(0);
+            batchCount.set(0);
             foundDuplicateCount.set(0);
 
             return text;
@@ -1,8 +1,11 @@
 package mt.fireworks.associations.cache;
 
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
+import mt.fireworks.associations.ByteList;
+
 public class BytesCacheBuilder {
 
     private BytesCacheBuilder() {}
@@ -32,15 +35,153 @@ public class BytesCacheBuilder {
          * @param association - function used to extract correlation.
          */
         AddAssociationOrBuild<T> associate(String keyName, Function<T, byte[]> association);
+
+        /**
+         * Add association function, whose keys hold at most given number of
+         * newest values. Adding value to full key drops its oldest value in
+         * constant time, and {@code getLast} reads newest values first.
+         *
+         * @param keyName - name of index / association
+         * @param association - function used to extract correlation.
+         * @param keyCapacity - max number of values under a key
+         */
+        AddAssociationOrBuild<T> associate(String keyName, Function<T, byte[]> association, int keyCapacity);
+
+        /**
+         * Add association function, whose index is stored outside of java heap.
+         * Keys are held in arena and storage keys in long slabs, addressed from
+         * open addressing table, so index costs no heap objects per key. Reads
+         * copy storage keys of queried key to heap. Index is not partitioned.
+         *
+         * @param keyName - name of index / association
+         * @param association - function used to extract correlation.
+         */
+        AddAssociationOrBuild<T> associateOffHeap(String keyName, Function<T, byte[]> association);
+
+        /**
+         * Add off-heap association function, whose keys hold at most given
+         * number of newest values. Postings of key are a ring, so value added
+         * to full key overwrites oldest one.
+         *
+         * @param keyName - name of index / association
+         * @param association - function used to extract correlation.
+         * @param keyCapacity - max number of values under a key
+         */
+        AddAssociationOrBuild<T> associateOffHeap(String keyName, Function<T, byte[]> association, int keyCapacity);
     }
 
     public static interface Build<T> {
-        /** Change default allocation rate. Default is 1 Mbyte. */
+        /**
+         * Change default allocation rate. Default is 1 Mbyte.
+         * Objects bigger than allocation size span many buckets.
+         */
         Build<T> allocationSize(int sizeInBytes);
 
+        /**
+         * Window stores start with bucket of given size, and double size of each
+         * following bucket up to allocation size. Empty and rarely written windows
+         * then hold little memory. Not used with storage directory.
+         */
+        Build<T> bucketGrowth(int initialSizeInBytes);
+
+        /**
+         * Store window data outside of java heap. Window memory is
+         * released when window is evicted on tick.
+         */
+        Build<T> offHeap();
+
+        /**
+         * Store windows in memory mapped files within directory, one file per window.
+         * Cache built over a directory with existing window files will restore data
+         * and rebuild its indexes. Start time is aligned to windows found in
+         * directory, and files of windows which are out of cache range are deleted.
+         */
+        Build<T> storageDirectory(File directory);
+
+        /**
+         * Writer threads claim chunks of window store and append to them
+         * without contention. Speeds up many concurrent writers, at cost of
+         * unused chunk tails. Chunk size must not exceed allocation size.
+         * Default is 0, chunks disabled.
+         */
+        Build<T> appendChunkSize(int sizeInBytes);
+
+        /**
+         * Objects never cross bucket boundary of window store, so reads never
+         * copy them. Unused tails of buckets are reported as padding in storage
+         * metric. Largest object is limited to allocation size, header included.
+         */
+        Build<T> noStraddle();
+
+        /**
+         * Reuse buckets of evicted windows for new windows, instead of allocating
+         * them. Buckets are returned to pool on tick, after indexes are cleaned.
+         * Pool holds at most given bytes, rest is released. Pool hit and miss
+         * counts are reported in storage metric. Not used with storage directory.
+         */
+        Build<T> bucketPool(long maxPooledBytes);
+
+        /**
+         * Keep order of entries within window, at about 4 bytes per entry.
+         * Makes reading newest entries of a window independent of window size.
+         * @see BytesCache#latest(long, int)
+         */
+        Build<T> ordinalIndex();
+
+        /**
+         * Compress full buckets of history windows on tick, with LZ4 like codec.
+         * Reads decompress buckets through small per thread cache. Compression
+         * ratio and decode time are reported in storage metric. Used only for
+         * heap windows, without storage directory and append chunks.
+         */
+        Build<T> compressHistory();
+
+        /**
+         * Store timestamp and index keys in front of each record, so tick
+         * cleans indexes without unmarshalling records or running keyers.
+         * Envelope size is reported in storage metric, and estimated time
+         * saved on tick in cache metric.
+         */
+        Build<T> recordEnvelope();
+
+        /**
+         * Keys hold tstamp in milliseconds since oldest window, so reads of time
+         * range don't unmarshal records outside of range. Tstamp takes bits
+         * for given lifetime of cache, or at least for range of windows, and
+         * rest of key is index within window. Longer lifetime limits window
+         * size: year leaves 28 bits, 256 MB per window. Cache has to be
+         * restarted within lifetime: records past it are dropped, and tick
+         * which would move windows past it fails.
+         */
+        Build<T> millisecondKeys(long lifetime, TimeUnit unit);
+
         /** Number of internal maps within index; used to store associations. */
         Build<T> indexMapCount(int val);
 
+        /**
+         * Partition indexes by window, each window has its own index maps.
+         * Tick then drops partitions of evicted window, without reading window
+         * data, so its cost doesn't grow with window size. Reads merge partitions
+         * of requested time range. Key capacity applies to each window.
+         */
+        Build<T> partitionedIndexes();
+
+        /**
+         * Tick only rotates windows, and removed window is evicted on a background
+         * thread. Removed window is invisible to reads at once, while its index
+         * entries are cleaned in slices of given duration, each followed by pause
+         * of same length. Progress and slice latency are reported in cache metric.
+         */
+        Build<T> backgroundEviction(long slice, TimeUnit unit);
+
+        /**
+         * Tick cache from internal scheduler, within given lag after end of now
+         * window. Missed ticks, as after suspend, are run at once.
+         * Tick lateness and writes dropped for lack of window are reported in
+         * cache metric. Cache has to be closed to stop scheduler.
+         */
+        Build<T> autoTick(long lag, TimeUnit unit);
+
         Build<T> historyWindowsCount(int val);
 
         Build<T> futureWindowCount(int val);
@@ -79,11 +220,76 @@ public class BytesCacheBuilder {
             return this;
         }
 
+        public AddAssociationOrBuild<T> associate(String keyName, Function<T, byte[]> association, int keyCapacity) {
+            factory.addKeyer(keyName, association, keyCapacity);
+            return this;
+        }
+
+        public AddAssociationOrBuild<T> associateOffHeap(String keyName, Function<T, byte[]> association) {
+            factory.addOffHeapKeyer(keyName, association);
+            return this;
+        }
+
+        public AddAssociationOrBuild<T> associateOffHeap(String keyName, Function<T, byte[]> association, int keyCapacity) {
+            factory.addOffHeapKeyer(keyName, association, keyCapacity);
+            return this;
+        }
+
         public Build<T> allocationSize(int sizeInBytes) {
             factory.setAllocationSize(sizeInBytes);
             return this;
         }
 
+        public Build<T> bucketGrowth(int initialSizeInBytes) {
+            factory.setInitialBucketSize(initialSizeInBytes);
+            return this;
+        }
+
+        public Build<T> offHeap() {
+            factory.setMemory(ByteList.Memory.OFF_HEAP);
+            return this;
+        }
+
+        public Build<T> storageDirectory(File directory) {
+            factory.setStorageDirectory(directory);
+            return this;
+        }
+
+        public Build<T> appendChunkSize(int sizeInBytes) {
+            factory.setAppendChunkSize(sizeInBytes);
+            return this;
+        }
+
+        public Build<T> noStraddle() {
+            factory.setNoStraddle(true);
+            return this;
+        }
+
+        public Build<T> bucketPool(long maxPooledBytes) {
+            factory.setBucketPoolCapacity(maxPooledBytes);
+            return this;
+        }
+
+        public Build<T> ordinalIndex() {
+            factory.setOrdinalIndex(true);
+            return this;
+        }
+
+        public Build<T> compressHistory() {
+            factory.setCompressHistory(true);
+            return this;
+        }
+
+        public Build<T> recordEnvelope() {
+            factory.setRecordEnvelope(true);
+            return this;
+        }
+
+        public Build<T> millisecondKeys(long lifetime, TimeUnit unit) {
+            factory.setKeyLifetimeMs(unit.toMillis(lifetime));
+            return this;
+        }
+
         public Build<T> historyWindowsCount(int val) {
             factory.setHistoryWindowsCount(val);
             return this;
@@ -125,6 +331,21 @@ public class BytesCacheBuilder {
             return this;
         }
 
+        public Build<T> partitionedIndexes() {
+            factory.setPartitionedIndexes(true);
+            return this;
+        }
+
+        public Build<T> backgroundEviction(long slice, TimeUnit unit) {
+            factory.setEvictionSliceNanos(unit.toNanos(slice));
+            return this;
+        }
+
+        public Build<T> autoTick(long lag, TimeUnit unit) {
+            factory.setTickLagMs(unit.toMillis(lag));
+            return this;
+        }
+
         public BytesCache<T> build() {
             return factory.getInstance();
         }
@@ -1,16 +1,22 @@
 package mt.fireworks.associations.cache;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.function.Function;
 
 import lombok.Setter;
+import mt.fireworks.associations.ByteList;
 
 public class BytesCacheFactory<T> {
 
     @Setter HashMap<String, Function<T, byte[]>> keyers = new HashMap<>();
 
+    /** names of indexes stored off heap */
+    @Setter HashSet<String> offHeapIndexes = new HashSet<>();
+
     @Setter CacheSerDes<T> serdes;
     @Setter Boolean metricsEnabled = Boolean.TRUE;
 
@@ -19,8 +25,20 @@ public class BytesCacheFactory<T> {
     /** Max number of values stored under a key. Default is unlimited (-1). */
     @Setter int keyCapacity = -1;
 
+    /** key capacity of index, by index name, instead of default one */
+    @Setter HashMap<String, Integer> keyCapacities = new HashMap<>();
+
     @Setter boolean checkForDuplicates = false;
     @Setter int indexMapCount = 128;
+
+    /** index partitioned by storage window, so tick drops window partition */
+    @Setter boolean partitionedIndexes = false;
+
+    /** slice budget of background eviction in nanoseconds, 0 if tick evicts */
+    @Setter long evictionSliceNanos = 0;
+
+    /** max delay of scheduled tick after window boundary in ms, 0 if ticked by user */
+    @Setter long tickLagMs = 0;
     Long startTimestamp;
 
     public BytesCache<T> getInstance() {
@@ -32,21 +50,36 @@ public class BytesCacheFactory<T> {
             ser = serdes.withMetric();
         }
 
-        TimeKeys timeKeys = new TimeKeys();
+        Storage storage = new Storage(storageConf, startTimestamp, new TimeKeys());
+        TimeKeys timeKeys = storage.timeKeys;
         
         ArrayList<Index<T>> indexList = new ArrayList<>();
         for (Entry<String, Function<T, byte[]>> e: keyers.entrySet()) {
             String name = e.getKey();
             Function<T, byte[]> keyer = e.getValue();
-            Index<T> i = new Index<>(name, keyer, timeKeys, indexMapCount, keyCapacity);
+            int keyCapacity = keyCapacities.getOrDefault(name, this.keyCapacity);
+            Index<T> i = offHeapIndexes.contains(name)
+                       ? new OffHeapIndex<>(name, keyer, timeKeys, indexMapCount, keyCapacity)
+                       : partitionedIndexes
+                       ? new PartitionedIndex<>(name, keyer, timeKeys, indexMapCount, keyCapacity, storage.origin, storage.conf.windowTimespanMs)
+                       : new Index<>(name, keyer, timeKeys, indexMapCount, keyCapacity);
             indexList.add(i);
         }
 
         @SuppressWarnings("unchecked")
         Index<T>[] indexes = indexList.toArray(new Index[indexList.size()]);
-        Storage storage = new Storage(storageConf, startTimestamp, timeKeys);
         BytesCache<T> cache = new BytesCache<>(timeKeys, storage, indexes, ser);
         cache.setCheckForDuplicates(checkForDuplicates);
+        // restored windows are reindexed before any tick can evict them
+        if (storage.isRestored()) {
+            cache.reindex();
+        }
+        if (evictionSliceNanos > 0) {
+            cache.backgroundEviction(evictionSliceNanos);
+        }
+        if (tickLagMs > 0) {
+            cache.autoTick(tickLagMs);
+        }
         return cache;
     }
 
@@ -59,6 +92,21 @@ public class BytesCacheFactory<T> {
         keyers.put(name, keyer);
     }
 
+    public void addKeyer(String name, Function<T, byte[]> keyer, int keyCapacity) {
+        addKeyer(name, keyer);
+        keyCapacities.put(name, keyCapacity);
+    }
+
+    public void addOffHeapKeyer(String name, Function<T, byte[]> keyer) {
+        addKeyer(name, keyer);
+        offHeapIndexes.add(name);
+    }
+
+    public void addOffHeapKeyer(String name, Function<T, byte[]> keyer, int keyCapacity) {
+        addKeyer(name, keyer, keyCapacity);
+        offHeapIndexes.add(name);
+    }
+
     public void setHistoryWindowsCount(Integer val) {
         storageConf.setHistoryWindowCount(val);
     }
@@ -74,6 +122,47 @@ public class BytesCacheFactory<T> {
     public void setAllocationSize(int sizeInBytes) {
         storageConf.setAllocationSize(sizeInBytes);
     }
+
+    public void setMemory(ByteList.Memory memory) {
+        storageConf.setMemory(memory);
+    }
+
+    public void setAppendChunkSize(int sizeInBytes) {
+        storageConf.setAppendChunkSize(sizeInBytes);
+    }
+
+    public void setNoStraddle(boolean noStraddle) {
+        storageConf.setNoStraddle(noStraddle);
+    }
+
+    public void setBucketPoolCapacity(long capacityInBytes) {
+        storageConf.setBucketPoolCapacity(capacityInBytes);
+    }
+
+    public void setInitialBucketSize(int sizeInBytes) {
+        storageConf.setInitialBucketSize(sizeInBytes);
+    }
+
+    public void setOrdinalIndex(boolean ordinalIndex) {
+        storageConf.setOrdinalIndex(ordinalIndex);
+    }
+
+    public void setCompressHistory(boolean compressHistory) {
+        storageConf.setCompressHistory(compressHistory);
+    }
+
+    public void setRecordEnvelope(boolean recordEnvelope) {
+        storageConf.setRecordEnvelope(recordEnvelope);
+    }
+
+    public void setKeyLifetimeMs(long lifetimeMs) {
+        storageConf.setKeyLifetimeMs(lifetimeMs);
+    }
+
+    public void setStorageDirectory(File directory) {
+        directory.mkdirs();
+        storageConf.setDirectory(directory);
+    }
     
     public long setStartTimeMillis(Long startTimestamp) {
         this.startTimestamp = TimeKeys.normalizieTimestamp(startTimestamp);
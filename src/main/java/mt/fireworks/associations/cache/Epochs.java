@@ -0,0 +1,82 @@
+package mt.fireworks.associations.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Epoch based reclamation of storage windows.
+ *
+ * <p>Reader publishes global epoch to its own thread slot on {@link #enter()},
+ * and clears it on {@link #exit(Slot)}. Both are plain volatile writes to
+ * memory of that thread only, there is no shared atomic update on read path.
+ *
+ * <p>Writer which unpublished a window calls {@link #synchronize()}, which
+ * advances epoch and waits for all readers which entered in older epoch.
+ * Readers entering later can't see unpublished window, so once it returns
+ * window memory can be released.
+ */
+class Epochs {
+
+    static final long IDLE = 0;
+
+    static class Slot {
+        /** epoch in which owner entered, or IDLE */
+        volatile long active = IDLE;
+
+        /** nested enters of owner thread, accessed by owner only */
+        int depth;
+
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        // keep slots of different threads on different cache lines
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    final AtomicLong epoch = new AtomicLong(1);
+    final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<>();
+    final ThreadLocal<Slot> local = ThreadLocal.withInitial(this::register);
+
+
+    /** Mark current thread as reader of published windows. */
+    Slot enter() {
+        Slot slot = local.get();
+        if (slot.depth++ == 0) {
+            slot.active = epoch.get();
+        }
+        return slot;
+    }
+
+    /** Leave section started with {@link #enter()}. */
+    void exit(Slot slot) {
+        if (--slot.depth == 0) {
+            slot.active = IDLE;
+        }
+    }
+
+
+    /**
+     * Wait for readers which entered before this call. Must not be called
+     * by thread which is itself within reader section.
+     */
+    void synchronize() {
+        long target = epoch.incrementAndGet();
+        for (Slot slot: slots) {
+            if (slot.owner.get() == null) {
+                slots.remove(slot);
+                continue;
+            }
+            long active;
+            while ((active = slot.active) != IDLE && active < target) {
+                Thread.yield();
+            }
+        }
+    }
+
+
+    Slot register() {
+        Slot slot = new Slot();
+        slots.add(slot);
+        return slot;
+    }
+}
@@ -2,17 +2,17 @@ package mt.fireworks.associations.cache;
 
 import static mt.fireworks.associations.cache.TimeUtils.info;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import org.eclipse.collections.api.block.HashingStrategy;
 import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.api.map.MutableMap;
-import org.eclipse.collections.impl.factory.primitive.LongLists;
-import org.eclipse.collections.impl.map.strategy.mutable.UnifiedMapWithHashingStrategy;
+import org.eclipse.collections.api.set.primitive.LongSet;
 
 import lombok.*;
 import mt.fireworks.associations.Associations;
+import mt.fireworks.associations.cache.Storage.Window;
 
 @Data
 class Index<T> {
@@ -26,8 +26,8 @@ class Index<T> {
     /** function which maps data to association key */
     Function<T, byte[] /**association key*/> keyer;
 
-    /** multimap of association key to keys in storage */
-    MutableMap<byte[] /**association key*/, MutableLongList /*storage keys*/>[] indexes;
+    /** multimap of association key to keys in storage, ordered by storage key */
+    IndexShard[] indexes;
 
     /** stores key epoch, shared across cache */
     TimeKeys timeKeys;
@@ -45,35 +45,63 @@ class Index<T> {
         this.timeKeys = tk;
         this.keyCapacity = keyCapacity;
 
-        this.indexes = new MutableMap[mapCount];
+        this.indexes = new IndexShard[mapCount];
 
         for (int idx = 0; idx < indexes.length; idx++) {
-            UnifiedMapWithHashingStrategy<byte[], MutableLongList> map = new UnifiedMapWithHashingStrategy<>(bytesHashing);
-            MutableMap<byte[], MutableLongList> mmap = map.asSynchronized();
-            this.indexes[idx] = mmap;
+            this.indexes[idx] = new IndexShard(metrics.readRetries, metrics.promotions, tk.indexBits);
         }
     }
 
 
     /** fetch index based on key */
-    MutableMap<byte[], MutableLongList> index(byte[] key) {
-        int idx = Math.abs( bytesHashing.computeHashCode(key) ) % indexes.length;
-        return indexes[idx];
+    IndexShard index(byte[] key) {
+        return indexes[shard(key, indexes.length)];
+    }
+
+    static int shard(byte[] key, int shardCount) {
+        return Math.abs( bytesHashing.computeHashCode(key) ) % shardCount;
+    }
+
+    /**
+     * Group batch by shard of key. Keys which are null, or whose storage key
+     * is 0 as their value isn't stored, are left out.
+     * @param bounds filled with start of each shard's group in order, and end of last one
+     * @return positions of batch, ordered by shard
+     */
+    static int[] groupByShard(byte[][] keys, long[] storageKeys, int shardCount, int[] bounds) {
+        int[] shards = new int[keys.length];
+        for (int idx = 0; idx < keys.length; idx++) {
+            if (keys[idx] == null || storageKeys[idx] == 0) {
+                shards[idx] = -1;
+                continue;
+            }
+            shards[idx] = shard(keys[idx], shardCount);
+            bounds[shards[idx] + 1]++;
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            bounds[shard + 1] += bounds[shard];
+        }
+
+        int[] order = new int[bounds[shardCount]];
+        int[] next = Arrays.copyOf(bounds, shardCount);
+        for (int idx = 0; idx < keys.length; idx++) {
+            if (shards[idx] >= 0) order[next[shards[idx]]++] = idx;
+        }
+        return order;
     }
 
 
     public boolean put(T val, long storageKey) {
+        return putKey(keyer.apply(val), storageKey);
+    }
+
+    /** Associate storage key to association key already computed by keyer. */
+    public boolean putKey(byte[] key, long storageKey) {
         metrics.putCount.incrementAndGet();
         long t = -System.nanoTime();
         try {
-            byte[] key = keyer.apply(val);
             if (key == null) return false;
-            MutableLongList keyData = index(key).getIfAbsentPut(key,
-                    () -> LongLists.mutable
-                                    .withInitialCapacity(1)
-                                    .asSynchronized());
-            keyData.add(storageKey);
-            removedOldestKeys(keyData);
+            index(key).add(key, storageKey, keyCapacity);
             return true;
         }
         finally {
@@ -81,24 +109,42 @@ class Index<T> {
             metrics.putDuration.addAndGet(t);
         }
     }
-    
-    void removedOldestKeys(MutableLongList keys) {
-        if (keyCapacity <= 0) return;
-        while (keys.size() > keyCapacity) {
-            long min = keys.min();
-            keys.remove(min);
+
+
+    /**
+     * Associate storage keys of batch to association keys, at same positions.
+     * Batch is grouped by shard, so each shard is locked once. Null keys, and
+     * storage keys 0 of values not stored, are skipped.
+     */
+    void putKeys(byte[][] keys, long[] storageKeys) {
+        long t = -System.nanoTime();
+        try {
+            int[] bounds = new int[indexes.length + 1];
+            int[] order = groupByShard(keys, storageKeys, indexes.length, bounds);
+            metrics.putCount.addAndGet(bounds[indexes.length]);
+            for (int shard = 0; shard < indexes.length; shard++) {
+                if (bounds[shard] == bounds[shard + 1]) continue;
+                indexes[shard].addAll(keys, storageKeys, order, bounds[shard], bounds[shard + 1], keyCapacity);
+            }
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.putDuration.addAndGet(t);
         }
     }
 
 
-    public MutableLongList get(T val) {
+    /**
+     * Snapshot of storage keys associated to val. Snapshot is immutable,
+     * and is not changed by later writes to index.
+     */
+    public Postings.Snapshot get(T val) {
         metrics.getCount.incrementAndGet();
         long t = -System.nanoTime();
         try {
             byte[] key = keyer.apply(val);
             if (key == null) return null;
-            MutableLongList keyData = index(key).get(key);
-            return keyData;
+            return index(key).snapshot(key);
         }
         finally {
             t += System.nanoTime();
@@ -107,6 +153,15 @@ class Index<T> {
     }
 
 
+    /**
+     * Storage keys associated to val. Index may skip keys outside of time range,
+     * but returned keys still have to be filtered by caller.
+     */
+    public Postings.Snapshot get(T val, Long fromInclusive, Long toExclusive) {
+        return get(val);
+    }
+
+
     /**
      * Values of T which happened on same tstamp by {@link TimeKeys#equalSec(long, long)}
      */
@@ -116,24 +171,9 @@ class Index<T> {
         try {
             byte[] valKey = keyer.apply(val);
             if (valKey == null) return null;
-            MutableLongList keyData = index(valKey).get(valKey);
+            Postings.Snapshot keyData = index(valKey).snapshot(valKey);
             if (keyData == null) return null;
-
-            boolean matching = keyData.anySatisfy(storedKey -> {
-                long keyTstamp = timeKeys.tstamp(storedKey);
-                boolean sameTime = timeKeys.equalSec(valTstamp, keyTstamp);
-                return sameTime;
-            });
-
-            if (!matching) return null;
-
-            MutableLongList onSameTime = keyData.select(storedKey -> {
-                long keyTstamp = timeKeys.tstamp(storedKey);
-                boolean sameTime = timeKeys.equalSec(valTstamp, keyTstamp);
-                return sameTime;
-            });
-
-            return onSameTime;
+            return sameSecond(keyData, valTstamp);
         }
         finally {
             t += System.nanoTime();
@@ -142,6 +182,16 @@ class Index<T> {
     }
 
 
+    /** @return keys of ordered snapshot within second of tstamp, or null if there are none */
+    MutableLongList sameSecond(Postings.Snapshot keys, long tstamp) {
+        long sec = TimeKeys.normalizieTimestamp(tstamp);
+        int lo = keys.lowerBound(timeKeys.lowestKey(sec));
+        int hi = keys.lowerBound(timeKeys.lowestKey(sec + 1000l));
+        if (lo >= hi) return null;
+        return keys.toList(lo, hi);
+    }
+
+
     /**
      * Clear index of all associated storage keys older than limit.
      *
@@ -149,31 +199,24 @@ class Index<T> {
      * @param upperTstampExclusive - age limit
      */
     void clearKey(T val, long upperTstampExclusive) {
-        long limit = upperTstampExclusive / 1000l * 1000l;
+        clearAssociation(keyer.apply(val), upperTstampExclusive);
+    }
+
+    /**
+     * Clear association key of all storage keys older than limit.
+     *
+     * @param key - association key, as computed by keyer
+     * @param upperTstampExclusive - age limit
+     */
+    void clearAssociation(byte[] key, long upperTstampExclusive) {
+        long limit = timeKeys.floor(upperTstampExclusive);
         metrics.clearKeyCount.incrementAndGet();
         long t = -System.nanoTime();
         try {
-            byte[] key = keyer.apply(val);
             if (key == null) return;
 
-            MutableLongList keyData = index(key).get(key);
-            if (keyData == null) return;
-            if (keyData.isEmpty()) return;
-
-            MutableLongList tmpBuffer = null;
-
-            for (int idx = 0; idx < keyData.size(); idx++) {
-                long storageKey = keyData.get(idx);
-                long tstamp = timeKeys.tstamp(storageKey);
-                if (tstamp < limit) {
-                    if (tmpBuffer == null) tmpBuffer = LongLists.mutable.empty();
-                    tmpBuffer.add(storageKey);
-                }
-            }
-
-            if (tmpBuffer == null) return;
-            if (tmpBuffer.size() == 0) return;
-            keyData.removeAll(tmpBuffer);
+            // keys are ordered by tstamp, so older keys are a prefix
+            index(key).removeBelow(key, timeKeys.lowestKey(limit));
         }
         finally {
             t += System.nanoTime();
@@ -181,23 +224,91 @@ class Index<T> {
         }
     }
 
+    /**
+     * Remove given storage keys from association key, as found missing
+     * in storage by reader.
+     */
+    void removeKeys(byte[] key, LongSet storageKeys) {
+        if (key == null) return;
+        index(key).removeAll(key, storageKeys);
+    }
+
     /**
      * Remove all index entries without any storage keys.
      */
     void removeEmptyEntries() {
+        for (int shard = 0; shard < shardCount(); shard++) {
+            removeEmptyEntries(shard);
+        }
+    }
+
+    /**
+     * Remove index entries without any storage keys, from one of internal maps.
+     */
+    void removeEmptyEntries(int shard) {
         long dur = -System.nanoTime();
-        for(MutableMap<byte[], MutableLongList> index: indexes)
-            index.removeIf((key, val) -> {
-                if (val == null || val.isEmpty()) {
-                    metrics.removeEmptyKeyCout.incrementAndGet();
-                    return true;
-                }
-                return false;
-            });
+        indexes[shard].removeIf((key, val) -> {
+            if (val == null || val.isEmpty()) {
+                metrics.removeEmptyKeyCout.incrementAndGet();
+                return true;
+            }
+            return false;
+        });
         dur += System.nanoTime();
         metrics.removeEmptyDuration.addAndGet(dur);
     }
 
+    /** @return number of internal maps */
+    int shardCount() {
+        return indexes.length;
+    }
+
+
+    /** @return true if index is partitioned by window, and doesn't need {@link #clearKey(Object, long)} */
+    boolean isPartitioned() {
+        return false;
+    }
+
+    /**
+     * Clean index after window is evicted. Keys of window data are already
+     * cleared with {@link #clearKey(Object, long)}.
+     */
+    void dropWindow(Window window) {
+        removeEmptyEntries();
+    }
+
+    /** @return number of association keys in index */
+    long size() {
+        long size = 0;
+        for (IndexShard index: indexes) {
+            size += index.size();
+        }
+        return size;
+    }
+
+    /** @return number of association keys with single storage key stored inline */
+    long inlineKeys() {
+        long count = 0;
+        for (IndexShard index: indexes) {
+            count += index.inlineCount();
+        }
+        return count;
+    }
+
+    /** @return number of association keys promoted to postings */
+    long promotedKeys() {
+        long count = 0;
+        for (IndexShard index: indexes) {
+            count += index.promotedCount();
+        }
+        return count;
+    }
+
+    /** @return bytes of index memory outside of java heap */
+    long offHeapBytes() {
+        return 0;
+    }
+
 
 
     class IndexMetrics implements Metrics {
@@ -219,6 +330,11 @@ class Index<T> {
         final AtomicLong removeEmptyKeyCout = new AtomicLong();
         final AtomicLong removeEmptyDuration = new AtomicLong();
 
+        final AtomicLong droppedPartitions = new AtomicLong();
+
+        final AtomicLong readRetries = new AtomicLong();
+        final AtomicLong promotions = new AtomicLong();
+
 
         @Override
         public String text(boolean comments) {
@@ -230,20 +346,26 @@ class Index<T> {
             String clearKey   = info("     clearKey", clearKeyCount, clearKeyDuration);
             String onSameTime = info("   onSameTime", onSameTimeCount, onSameTimeDuration);
 
-            long size = 0;
-            for (MutableMap<byte[], MutableLongList> index: indexes) {
-                size += index.size();
-            }
+            long size = Index.this.size();
+            long offHeap = offHeapBytes();
 
             StringBuilder sb = new StringBuilder();
             sb.append("## ").append(name).append(" ").append(Index.this.name).append(" metrics\n");
             sb.append("  startTstamp: ").append(startStr).append("\n");
             sb.append("         size: ").append(size).append("\n");
+            if (offHeap > 0) sb.append("     off-heap: ").append(offHeap).append(" bytes\n");
+            else {
+                sb.append("  inline keys: ").append(inlineKeys()).append("\n");
+                sb.append("promoted keys: ").append(promotedKeys()).append("\n");
+                sb.append("   promotions: ").append(promotions.get()).append("\n");
+            }
             sb.append(put).append("\n");
             sb.append(get).append("\n");
             sb.append(clearKey).append("\n");
             sb.append(onSameTime).append("\n");
+            sb.append(" read retries: ").append(readRetries.get()).append("\n");
             sb.append("   empty keys: ").append(removeEmptyKeyCout.get()).append("\n");
+            if (isPartitioned()) sb.append(" dropped part: ").append(droppedPartitions.get()).append("\n");
             sb.append(" emptying dur: ").append(TimeUtils.toReadable(removeEmptyDuration.get()));
             return sb.toString();
         }
@@ -261,6 +383,9 @@ class Index<T> {
             onSameTimeDuration.set(0);
             removeEmptyKeyCout.set(0);
             removeEmptyDuration.set(0);
+            droppedPartitions.set(0);
+            readRetries.set(0);
+            promotions.set(0);
             return ts;
         }
     }
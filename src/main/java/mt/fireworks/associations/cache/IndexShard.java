@@ -0,0 +1,258 @@
+package mt.fireworks.associations.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import org.eclipse.collections.api.block.predicate.Predicate2;
+import org.eclipse.collections.api.set.primitive.LongSet;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectLongHashMapWithHashingStrategy;
+import org.eclipse.collections.impl.map.strategy.mutable.UnifiedMapWithHashingStrategy;
+
+/**
+ * One shard of index map, association key to storage keys.
+ *
+ * <p>Key with single storage key is stored inline, as long value of
+ * {@code singles} map, without any object per key. Second storage key
+ * promotes key to {@link Postings} of {@code map}. Promoted key stays
+ * in map until its postings are empty and removed.
+ *
+ * <p>Reads are optimistic: maps are read without lock, and result is used
+ * only if no write happened meanwhile. Otherwise read is retried under read
+ * lock. Readers don't write shared memory, so they don't slow each other
+ * down. Writes lock only their shard, and writes to promoted keys lock only
+ * their postings.
+ *
+ * <p>Optimistic read may see map in middle of write. Such read can fail
+ * with exception, which is ignored since stamp won't validate.
+ */
+final class IndexShard {
+
+    /** value of singles map for absent key, storage keys are not negative */
+    static final long NONE = Long.MIN_VALUE;
+
+    final UnifiedMapWithHashingStrategy<byte[], Postings> map = new UnifiedMapWithHashingStrategy<>(Index.bytesHashing);
+    final ObjectLongHashMapWithHashingStrategy<byte[]> singles = new ObjectLongHashMapWithHashingStrategy<>(Index.bytesHashing);
+    final StampedLock lock = new StampedLock();
+
+    /** optimistic reads retried under lock, shared by shards of index */
+    final AtomicLong readRetries;
+
+    /** keys promoted from inline to postings, shared by shards of index */
+    final AtomicLong promotions;
+
+    /** bits of storage index in keys, for packing postings */
+    final int indexBits;
+
+
+    IndexShard(AtomicLong readRetries, AtomicLong promotions, int indexBits) {
+        this.readRetries = readRetries;
+        this.promotions = promotions;
+        this.indexBits = indexBits;
+    }
+
+
+    /** @return postings of promoted key, or null */
+    Postings get(byte[] key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Postings val = map.get(key);
+                if (lock.validate(stamp)) return val;
+            }
+            catch (RuntimeException e) {
+                // torn read of map being written, retried under lock
+            }
+        }
+
+        readRetries.incrementAndGet();
+        stamp = lock.readLock();
+        try {
+            return map.get(key);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    /** @return snapshot of storage keys of key, or null if key is unknown */
+    Postings.Snapshot snapshot(byte[] key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Postings.Snapshot val = read(key);
+                if (lock.validate(stamp)) return val;
+            }
+            catch (RuntimeException e) {
+                // torn read of map being written, retried under lock
+            }
+        }
+
+        readRetries.incrementAndGet();
+        stamp = lock.readLock();
+        try {
+            return read(key);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    Postings.Snapshot read(byte[] key) {
+        Postings postings = map.get(key);
+        if (postings != null) return postings.snapshot();
+        long single = singles.getIfAbsent(key, NONE);
+        return single != NONE ? Postings.single(single) : null;
+    }
+
+
+    /**
+     * Add storage key to key. Unknown key is stored inline, and inline key
+     * is promoted to postings.
+     * @param keyCapacity - max number of keys, unlimited if not positive
+     */
+    void add(byte[] key, long storageKey, int keyCapacity) {
+        // postings removed since get refuse add, which is then retried under lock
+        Postings postings = get(key);
+        if (postings != null && postings.add(storageKey, keyCapacity)) {
+            return;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            addLocked(key, storageKey, keyCapacity);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Add storage keys of batch, at given positions of order, under one
+     * write lock of shard.
+     */
+    void addAll(byte[][] keys, long[] storageKeys, int[] order, int from, int to, int keyCapacity) {
+        long stamp = lock.writeLock();
+        try {
+            for (int n = from; n < to; n++) {
+                int idx = order[n];
+                addLocked(keys[idx], storageKeys[idx], keyCapacity);
+            }
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void addLocked(byte[] key, long storageKey, int keyCapacity) {
+        Postings postings = map.get(key);
+        if (postings == null) {
+            long single = singles.removeKeyIfAbsent(key, NONE);
+            if (single == NONE) {
+                singles.put(key, storageKey);
+                return;
+            }
+            postings = new Postings(indexBits);
+            postings.add(single, keyCapacity);
+            map.put(key, postings);
+            promotions.incrementAndGet();
+        }
+        postings.add(storageKey, keyCapacity);
+    }
+
+    /** Remove storage keys of key smaller than given limit. */
+    void removeBelow(byte[] key, long limitKey) {
+        Postings postings = get(key);
+        if (postings != null) {
+            postings.removeBelow(limitKey);
+            return;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            postings = map.get(key);
+            if (postings != null) {
+                postings.removeBelow(limitKey);
+                return;
+            }
+            long single = singles.getIfAbsent(key, NONE);
+            if (single != NONE && single < limitKey) singles.remove(key);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Remove given storage keys of key. */
+    void removeAll(byte[] key, LongSet storageKeys) {
+        Postings postings = get(key);
+        if (postings != null) {
+            postings.removeAll(storageKeys);
+            return;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            postings = map.get(key);
+            if (postings != null) {
+                postings.removeAll(storageKeys);
+                return;
+            }
+            long single = singles.getIfAbsent(key, NONE);
+            if (single != NONE && storageKeys.contains(single)) singles.remove(key);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * Remove promoted keys matching predicate. Inline keys are removed with their storage key.
+     * Predicate is tested under monitor of postings, and removed postings are marked so, thus
+     * concurrent add to postings which is already out of map is not lost, but retried.
+     */
+    void removeIf(Predicate2<? super byte[], ? super Postings> predicate) {
+        long stamp = lock.writeLock();
+        try {
+            map.removeIf((key, postings) -> {
+                synchronized (postings) {
+                    if (!predicate.accept(key, postings)) return false;
+                    postings.removed = true;
+                    return true;
+                }
+            });
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /** @return number of keys */
+    int size() {
+        return inlineCount() + promotedCount();
+    }
+
+    /** @return number of keys stored inline */
+    int inlineCount() {
+        long stamp = lock.readLock();
+        try {
+            return singles.size();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @return number of keys promoted to postings */
+    int promotedCount() {
+        long stamp = lock.readLock();
+        try {
+            return map.size();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package mt.fireworks.associations.cache;
+
+import java.util.function.Function;
+
+import org.eclipse.collections.api.list.primitive.MutableLongList;
+import org.eclipse.collections.api.set.primitive.LongSet;
+
+/**
+ * Index which keeps association keys and their storage keys outside of
+ * java heap, in {@link OffHeapShard}s. Entry holding one storage key costs
+ * about 40 bytes plus key bytes, with no heap objects per entry.
+ *
+ * <p>Reads copy storage keys of association key to heap snapshot. Empty
+ * keys are removed when shard is compacted on tick.
+ */
+class OffHeapIndex<T> extends Index<T> {
+
+    final OffHeapShard[] shards;
+
+
+    OffHeapIndex(String name, Function<T, byte[]> keyer, TimeKeys tk, int mapCount, int keyCapacity) {
+        super(name, keyer, tk, 0, keyCapacity);
+        this.shards = new OffHeapShard[mapCount];
+        for (int idx = 0; idx < shards.length; idx++) {
+            shards[idx] = new OffHeapShard(metrics.readRetries);
+        }
+    }
+
+
+    OffHeapShard shard(byte[] key) {
+        return shards[shard(key, shards.length)];
+    }
+
+
+    @Override
+    public boolean putKey(byte[] key, long storageKey) {
+        metrics.putCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            if (key == null) return false;
+            shard(key).add(key, storageKey, keyCapacity);
+            return true;
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.putDuration.addAndGet(t);
+        }
+    }
+
+
+    @Override
+    void putKeys(byte[][] keys, long[] storageKeys) {
+        long t = -System.nanoTime();
+        try {
+            int[] bounds = new int[shards.length + 1];
+            int[] order = groupByShard(keys, storageKeys, shards.length, bounds);
+            metrics.putCount.addAndGet(bounds[shards.length]);
+            for (int shard = 0; shard < shards.length; shard++) {
+                if (bounds[shard] == bounds[shard + 1]) continue;
+                shards[shard].addAll(keys, storageKeys, order, bounds[shard], bounds[shard + 1], keyCapacity);
+            }
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.putDuration.addAndGet(t);
+        }
+    }
+
+
+    @Override
+    public Postings.Snapshot get(T val) {
+        metrics.getCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            byte[] key = keyer.apply(val);
+            if (key == null) return null;
+            return shard(key).get(key);
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.getDuration.addAndGet(t);
+        }
+    }
+
+
+    @Override
+    public MutableLongList onSameTime(T val, long valTstamp) {
+        metrics.onSameTimeCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            byte[] valKey = keyer.apply(val);
+            if (valKey == null) return null;
+            Postings.Snapshot keyData = shard(valKey).get(valKey);
+            if (keyData == null) return null;
+            return sameSecond(keyData, valTstamp);
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.onSameTimeDuration.addAndGet(t);
+        }
+    }
+
+
+    @Override
+    void clearAssociation(byte[] key, long upperTstampExclusive) {
+        long limit = timeKeys.floor(upperTstampExclusive);
+        metrics.clearKeyCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            if (key == null) return;
+            shard(key).removeBelow(key, timeKeys.lowestKey(limit));
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.clearKeyDuration.addAndGet(t);
+        }
+    }
+
+    @Override
+    void removeKeys(byte[] key, LongSet storageKeys) {
+        if (key == null) return;
+        shard(key).removeAll(key, storageKeys);
+    }
+
+
+    @Override
+    void removeEmptyEntries(int shard) {
+        long dur = -System.nanoTime();
+        int removed = shards[shard].compact();
+        metrics.removeEmptyKeyCout.addAndGet(removed);
+        dur += System.nanoTime();
+        metrics.removeEmptyDuration.addAndGet(dur);
+    }
+
+    @Override
+    int shardCount() {
+        return shards.length;
+    }
+
+    @Override
+    long size() {
+        long size = 0;
+        for (OffHeapShard shard: shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    long offHeapBytes() {
+        long bytes = 0;
+        for (OffHeapShard shard: shards) {
+            bytes += shard.memory();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,498 @@
+package mt.fireworks.associations.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.set.primitive.LongSet;
+import org.eclipse.collections.impl.factory.primitive.IntLists;
+
+/**
+ * Shard of off-heap index, association key to ordered storage keys, held
+ * in three direct buffers:
+ *
+ * <pre>
+ * table:  | hash: int, key ref + 1: int | posting ref: long | ...   open addressing, linear probing
+ * arena:  | key length: int | key bytes | ...                       key bytes, appended
+ * slab:   | capacity: int | size: int | head: int | - | storage keys: long[capacity] | ...
+ * </pre>
+ *
+ * Java heap holds only buffers and free lists of posting blocks, so entry
+ * costs 16 bytes of table, key bytes plus 4, and posting block of power of
+ * two capacity plus 16 bytes.
+ *
+ * <p>Posting block is a ring: its oldest key is at {@code head}. Dropping
+ * oldest keys only moves head, so key at capacity overwrites oldest slot
+ * in place, without shifting keys.
+ *
+ * <p>Reads are optimistic, as of {@link IndexShard}, and copy postings of key
+ * to heap. Keys are not removed one by one: {@link #compact()} rebuilds shard
+ * without empty keys, and releases space of removed keys and moved postings.
+ * Replaced buffers are released by GC, since optimistic reader may still
+ * read them.
+ */
+final class OffHeapShard {
+
+    static final int SLOT_SIZE = 16;
+    static final int BLOCK_HEADER = 16;
+    static final int MIN_SLOTS = 16;
+    static final int MIN_BUFFER = 1024;
+    static final int MAX_BUFFER = Integer.MAX_VALUE - 8;
+
+    final StampedLock lock = new StampedLock();
+
+    /** optimistic reads retried under lock, shared by shards of index */
+    final AtomicLong readRetries;
+
+    ByteBuffer table = allocate(MIN_SLOTS * SLOT_SIZE);
+    int mask = MIN_SLOTS - 1;
+    int count;
+
+    ByteBuffer arena = allocate(MIN_BUFFER);
+    int arenaUsed;
+
+    ByteBuffer slab = allocate(MIN_BUFFER);
+    int slabUsed;
+
+    /** free posting blocks, by log2 of capacity */
+    final MutableIntList[] freeBlocks = new MutableIntList[32];
+
+
+    OffHeapShard(AtomicLong readRetries) {
+        this.readRetries = readRetries;
+    }
+
+
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /** hash of key within shard, mixed since shard is picked by same hash */
+    static int hash(byte[] key) {
+        int h = Index.bytesHashing.computeHashCode(key) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    /** @return copy of storage keys of association key, or null if key is unknown */
+    Postings.Snapshot get(byte[] key) {
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Postings.Snapshot res = read(key, hash);
+                if (lock.validate(stamp)) return res;
+            }
+            catch (RuntimeException e) {
+                // torn read of shard being written, retried under lock
+            }
+        }
+
+        readRetries.incrementAndGet();
+        stamp = lock.readLock();
+        try {
+            return read(key, hash);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    Postings.Snapshot read(byte[] key, int hash) {
+        ByteBuffer slab = this.slab;
+        int slot = find(key, hash);
+        if (slot < 0) return null;
+        int ref = (int) table.getLong(slot * SLOT_SIZE + 8);
+        int capacity = slab.getInt(ref);
+        int size = slab.getInt(ref + 4);
+        // torn block could give any size, bound it by slab before allocating keys
+        int maxCapacity = (slab.capacity() - ref - BLOCK_HEADER) / 8;
+        if (size < 0 || size > capacity || capacity > maxCapacity) {
+            throw new IllegalStateException("Torn posting block: " + size + "/" + capacity);
+        }
+        long[] keys = new long[size];
+        for (int idx = 0; idx < size; idx++) {
+            keys[idx] = slab.getLong(keyPos(slab, ref, idx));
+        }
+        return Postings.of(keys, size);
+    }
+
+
+    /**
+     * Add storage key keeping keys ordered, and drop oldest keys over capacity.
+     * Key newer than all kept keys of full block takes slot of oldest one.
+     * @param keyCapacity - max number of keys, unlimited if not positive
+     */
+    void add(byte[] key, long storageKey, int keyCapacity) {
+        long stamp = lock.writeLock();
+        try {
+            addLocked(key, storageKey, keyCapacity);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Add storage keys of batch, at given positions of order, under one
+     * write lock of shard.
+     */
+    void addAll(byte[][] keys, long[] storageKeys, int[] order, int from, int to, int keyCapacity) {
+        long stamp = lock.writeLock();
+        try {
+            for (int n = from; n < to; n++) {
+                int idx = order[n];
+                addLocked(keys[idx], storageKeys[idx], keyCapacity);
+            }
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void addLocked(byte[] key, long storageKey, int keyCapacity) {
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (slot < 0) {
+            if (2 * (count + 1) > mask + 1) {
+                rehash(2 * (mask + 1));
+                slot = find(key, hash);
+            }
+            slot = insertKey(~slot, key, hash, allocBlock(1));
+        }
+
+        int slotPos = slot * SLOT_SIZE + 8;
+        int ref = (int) table.getLong(slotPos);
+        int capacity = slab.getInt(ref);
+        int size = slab.getInt(ref + 4);
+        int pos = upperBound(ref, size, storageKey);
+
+        if (keyCapacity > 0 && size >= keyCapacity) {
+            int drop = size - keyCapacity + 1;
+            if (pos < drop) {
+                // new key is older than all kept keys, and is dropped at once
+                slab.putInt(ref + 4, dropHead(ref, size, drop - 1));
+                return;
+            }
+            size = dropHead(ref, size, drop);
+            pos -= drop;
+        }
+
+        if (size == capacity) {
+            int moved = allocBlock(2 * capacity);
+            copyKeys(ref, moved, size);
+            freeBlock(ref, capacity);
+            table.putLong(slotPos, moved);
+            ref = moved;
+        }
+
+        for (int idx = size; idx > pos; idx--) {
+            slab.putLong(keyPos(ref, idx), slab.getLong(keyPos(ref, idx - 1)));
+        }
+        slab.putLong(keyPos(ref, pos), storageKey);
+        slab.putInt(ref + 4, size + 1);
+    }
+
+    /** Remove storage keys smaller than limit. */
+    void removeBelow(byte[] key, long limitKey) {
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) return;
+            int ref = (int) table.getLong(slot * SLOT_SIZE + 8);
+            int size = slab.getInt(ref + 4);
+            int drop = lowerBound(ref, size, limitKey);
+            if (drop == 0) return;
+            slab.putInt(ref + 4, dropHead(ref, size, drop));
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Remove given storage keys. */
+    void removeAll(byte[] key, LongSet storageKeys) {
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) return;
+            int ref = (int) table.getLong(slot * SLOT_SIZE + 8);
+            int size = slab.getInt(ref + 4);
+            int kept = 0;
+            for (int idx = 0; idx < size; idx++) {
+                long k = slab.getLong(keyPos(ref, idx));
+                if (storageKeys.contains(k)) continue;
+                slab.putLong(keyPos(ref, kept++), k);
+            }
+            slab.putInt(ref + 4, kept);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * Rebuild shard without keys which have no storage keys. Space of removed
+     * keys and freed posting blocks is released. Shard without empty keys is
+     * rebuilt only if half of its buffers is unused.
+     * @return number of removed keys
+     */
+    int compact() {
+        long stamp = lock.writeLock();
+        try {
+            int live = 0;
+            int liveArena = 0;
+            int liveSlab = 0;
+            for (int slot = 0; slot <= mask; slot++) {
+                long w = table.getLong(slot * SLOT_SIZE);
+                if (w == 0) continue;
+                int ref = (int) table.getLong(slot * SLOT_SIZE + 8);
+                int size = slab.getInt(ref + 4);
+                if (size == 0) continue;
+                live++;
+                liveArena += 4 + arena.getInt((int) w - 1);
+                liveSlab += BLOCK_HEADER + 8 * blockCapacity(size);
+            }
+
+            int removed = count - live;
+            boolean sparse = 2 * liveArena < arenaUsed || 2 * liveSlab < slabUsed;
+            if (removed == 0 && !sparse) return 0;
+
+            ByteBuffer oldTable = table;
+            ByteBuffer oldArena = arena;
+            ByteBuffer oldSlab = slab;
+            int oldMask = mask;
+
+            int slots = MIN_SLOTS;
+            while (slots < 2 * live) slots *= 2;
+            table = allocate(slots * SLOT_SIZE);
+            mask = slots - 1;
+            count = 0;
+            arena = allocate(Math.max(MIN_BUFFER, liveArena));
+            arenaUsed = 0;
+            slab = allocate(Math.max(MIN_BUFFER, liveSlab));
+            slabUsed = 0;
+            for (int idx = 0; idx < freeBlocks.length; idx++) freeBlocks[idx] = null;
+
+            for (int slot = 0; slot <= oldMask; slot++) {
+                long w = oldTable.getLong(slot * SLOT_SIZE);
+                if (w == 0) continue;
+                int ref = (int) oldTable.getLong(slot * SLOT_SIZE + 8);
+                int size = oldSlab.getInt(ref + 4);
+                if (size == 0) continue;
+
+                int keyRef = (int) w - 1;
+                byte[] key = new byte[oldArena.getInt(keyRef)];
+                for (int idx = 0; idx < key.length; idx++) {
+                    key[idx] = oldArena.get(keyRef + 4 + idx);
+                }
+                int block = allocBlock(blockCapacity(size));
+                for (int idx = 0; idx < size; idx++) {
+                    slab.putLong(keyPos(block, idx), oldSlab.getLong(keyPos(oldSlab, ref, idx)));
+                }
+                slab.putInt(block + 4, size);
+
+                int hash = (int) (w >>> 32);
+                insertKey(~find(key, hash), key, hash, block);
+            }
+            return removed;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /** @return number of association keys */
+    int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = count;
+        if (lock.validate(stamp)) return size;
+
+        stamp = lock.readLock();
+        try {
+            return count;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @return bytes of direct buffers */
+    long memory() {
+        long stamp = lock.readLock();
+        try {
+            return (long) table.capacity() + arena.capacity() + slab.capacity();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    /** @return slot of key, or negated slot where key should be inserted */
+    int find(byte[] key, int hash) {
+        ByteBuffer table = this.table;
+        int mask = this.mask;
+        int slot = hash & mask;
+        for (int n = 0; n <= mask; n++) {
+            long w = table.getLong(slot * SLOT_SIZE);
+            if (w == 0) return ~slot;
+            if ((int) (w >>> 32) == hash && keyEquals((int) w - 1, key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        throw new IllegalStateException("Off-heap index shard table is full");
+    }
+
+    boolean keyEquals(int keyRef, byte[] key) {
+        ByteBuffer arena = this.arena;
+        if (arena.getInt(keyRef) != key.length) return false;
+        for (int idx = 0; idx < key.length; idx++) {
+            if (arena.get(keyRef + 4 + idx) != key[idx]) return false;
+        }
+        return true;
+    }
+
+    /** Store key in arena, with given posting block, at given empty slot. @return slot */
+    int insertKey(int slot, byte[] key, int hash, int block) {
+        ensureArena(4 + key.length);
+        int keyRef = arenaUsed;
+        arena.putInt(keyRef, key.length);
+        for (int idx = 0; idx < key.length; idx++) {
+            arena.put(keyRef + 4 + idx, key[idx]);
+        }
+        arenaUsed += 4 + key.length;
+
+        table.putLong(slot * SLOT_SIZE + 8, block);
+        table.putLong(slot * SLOT_SIZE, (long) hash << 32 | ((keyRef + 1) & 0xFFFFFFFFL));
+        count++;
+        return slot;
+    }
+
+    void rehash(int slots) {
+        ByteBuffer old = table;
+        int oldMask = mask;
+        ByteBuffer fresh = allocate(slots * SLOT_SIZE);
+        int freshMask = slots - 1;
+        for (int slot = 0; slot <= oldMask; slot++) {
+            long w = old.getLong(slot * SLOT_SIZE);
+            if (w == 0) continue;
+            int s = (int) (w >>> 32) & freshMask;
+            while (fresh.getLong(s * SLOT_SIZE) != 0) s = (s + 1) & freshMask;
+            fresh.putLong(s * SLOT_SIZE, w);
+            fresh.putLong(s * SLOT_SIZE + 8, old.getLong(slot * SLOT_SIZE + 8));
+        }
+        table = fresh;
+        mask = freshMask;
+    }
+
+
+    /** @return smallest power of two not less than size */
+    static int blockCapacity(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    int allocBlock(int capacity) {
+        int cls = Integer.numberOfTrailingZeros(capacity);
+        MutableIntList free = freeBlocks[cls];
+        int ref;
+        if (free != null && !free.isEmpty()) {
+            ref = free.removeAtIndex(free.size() - 1);
+        }
+        else {
+            int size = BLOCK_HEADER + 8 * capacity;
+            ensureSlab(size);
+            ref = slabUsed;
+            slabUsed += size;
+        }
+        slab.putInt(ref, capacity);
+        slab.putInt(ref + 4, 0);
+        slab.putInt(ref + 8, 0);
+        return ref;
+    }
+
+    void freeBlock(int ref, int capacity) {
+        int cls = Integer.numberOfTrailingZeros(capacity);
+        if (freeBlocks[cls] == null) freeBlocks[cls] = IntLists.mutable.empty();
+        freeBlocks[cls].add(ref);
+    }
+
+    void copyKeys(int from, int to, int size) {
+        for (int idx = 0; idx < size; idx++) {
+            slab.putLong(keyPos(to, idx), slab.getLong(keyPos(from, idx)));
+        }
+        slab.putInt(to + 4, size);
+    }
+
+    /** Move head of block past oldest keys. @return new size */
+    int dropHead(int ref, int size, int drop) {
+        if (drop == 0) return size;
+        int head = (slab.getInt(ref + 8) + drop) & (slab.getInt(ref) - 1);
+        slab.putInt(ref + 8, head);
+        return size - drop;
+    }
+
+    int keyPos(int ref, int idx) {
+        return keyPos(slab, ref, idx);
+    }
+
+    /** @return position of key at index of block, counted from head */
+    static int keyPos(ByteBuffer slab, int ref, int idx) {
+        int slot = (slab.getInt(ref + 8) + idx) & (slab.getInt(ref) - 1);
+        return ref + BLOCK_HEADER + 8 * slot;
+    }
+
+    int lowerBound(int ref, int size, long key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (slab.getLong(keyPos(ref, mid)) < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    int upperBound(int ref, int size, long key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (slab.getLong(keyPos(ref, mid)) <= key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+
+    void ensureArena(int extra) {
+        arena = ensure(arena, arenaUsed, extra, "key arena");
+    }
+
+    void ensureSlab(int extra) {
+        slab = ensure(slab, slabUsed, extra, "posting slab");
+    }
+
+    /** @return buffer with room for extra bytes after used, copied to bigger one if needed */
+    static ByteBuffer ensure(ByteBuffer buffer, int used, int extra, String name) {
+        long needed = (long) used + extra;
+        if (needed <= buffer.capacity()) return buffer;
+        if (needed > MAX_BUFFER) {
+            throw new RuntimeException("Off-heap index shard " + name + " is full: " + used + " bytes used, " + extra + " more needed");
+        }
+
+        long size = Math.min(MAX_BUFFER, Math.max(needed, 2l * buffer.capacity()));
+        ByteBuffer grown = allocate((int) size);
+        ByteBuffer src = buffer.duplicate();
+        src.clear();
+        src.limit(used);
+        grown.put(src);
+        grown.clear();
+        return grown;
+    }
+}
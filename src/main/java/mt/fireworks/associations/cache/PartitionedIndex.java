@@ -0,0 +1,215 @@
+package mt.fireworks.associations.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+import org.eclipse.collections.api.list.primitive.MutableLongList;
+import org.eclipse.collections.api.set.primitive.LongSet;
+
+import mt.fireworks.associations.cache.Storage.Window;
+
+/**
+ * Index partitioned by storage window. Each window has its own multimap
+ * of association key to storage keys, so evicting a window drops its
+ * partition without reading window data.
+ *
+ * <p>Partition of storage key is computed from its tstamp, same as window
+ * of storage. Reads merge partitions overlapping requested time range,
+ * oldest first, so merged keys stay ordered. Key capacity is applied to
+ * each partition.
+ */
+class PartitionedIndex<T> extends Index<T> {
+
+    /** start of storage window number 0 */
+    final long origin;
+
+    /** duration of storage window */
+    final long span;
+
+    /** maps per partition */
+    final int mapCount;
+
+    /** partitions by window number */
+    final ConcurrentSkipListMap<Long, IndexShard[]> partitions = new ConcurrentSkipListMap<>();
+
+
+    PartitionedIndex(String name, Function<T, byte[]> keyer, TimeKeys tk, int mapCount, int keyCapacity, long origin, long span) {
+        super(name, keyer, tk, 0, keyCapacity);
+        this.origin = origin;
+        this.span = span;
+        this.mapCount = mapCount;
+    }
+
+
+    long windowNo(long tstamp) {
+        return Math.floorDiv(tstamp - origin, span);
+    }
+
+    IndexShard[] newPartition(Long windowNo) {
+        IndexShard[] maps = new IndexShard[mapCount];
+        for (int idx = 0; idx < maps.length; idx++) {
+            maps[idx] = new IndexShard(metrics.readRetries, metrics.promotions, timeKeys.indexBits);
+        }
+        return maps;
+    }
+
+    static IndexShard map(IndexShard[] partition, byte[] key) {
+        int idx = Math.abs( bytesHashing.computeHashCode(key) ) % partition.length;
+        return partition[idx];
+    }
+
+
+    @Override
+    public boolean putKey(byte[] key, long storageKey) {
+        metrics.putCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            if (key == null) return false;
+            long windowNo = windowNo(timeKeys.tstamp(storageKey));
+            IndexShard[] partition = partitions.computeIfAbsent(windowNo, this::newPartition);
+            map(partition, key).add(key, storageKey, keyCapacity);
+            return true;
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.putDuration.addAndGet(t);
+        }
+    }
+
+    /** Batch is added key by key, as keys of batch may fall to different window partitions. */
+    @Override
+    void putKeys(byte[][] keys, long[] storageKeys) {
+        for (int idx = 0; idx < keys.length; idx++) {
+            if (storageKeys[idx] != 0) putKey(keys[idx], storageKeys[idx]);
+        }
+    }
+
+
+    @Override
+    public Postings.Snapshot get(T val) {
+        return get(val, null, null);
+    }
+
+    @Override
+    public Postings.Snapshot get(T val, Long fromInclusive, Long toExclusive) {
+        metrics.getCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            byte[] key = keyer.apply(val);
+            if (key == null) return null;
+
+            long fromNo = fromInclusive != null ? windowNo(TimeKeys.normalizieTimestamp(fromInclusive)) : Long.MIN_VALUE;
+            long toNo = toExclusive != null ? windowNo(TimeKeys.normalizieTimestamp(toExclusive) + 1000l) : Long.MAX_VALUE;
+            if (fromNo > toNo) return null;
+            return merge(partitions.subMap(fromNo, true, toNo, true).values(), key);
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.getDuration.addAndGet(t);
+        }
+    }
+
+    /** @return keys of all partitions, oldest first. Single partition snapshot is returned as is. */
+    Postings.Snapshot merge(Collection<IndexShard[]> parts, byte[] key) {
+        Postings.Snapshot first = null;
+        ArrayList<Postings.Snapshot> merged = null;
+        for (IndexShard[] partition: parts) {
+            Postings.Snapshot snapshot = map(partition, key).snapshot(key);
+            if (snapshot == null || snapshot.isEmpty()) continue;
+            if (first == null) {
+                first = snapshot;
+                continue;
+            }
+            if (merged == null) {
+                merged = new ArrayList<>();
+                merged.add(first);
+            }
+            merged.add(snapshot);
+        }
+        if (merged == null) return first;
+        return Postings.concat(merged.toArray(new Postings.Snapshot[merged.size()]));
+    }
+
+
+    @Override
+    public MutableLongList onSameTime(T val, long valTstamp) {
+        metrics.onSameTimeCount.incrementAndGet();
+        long t = -System.nanoTime();
+        try {
+            byte[] valKey = keyer.apply(val);
+            if (valKey == null) return null;
+
+            // second of tstamp may span two windows
+            long sec = TimeKeys.normalizieTimestamp(valTstamp);
+            long fromNo = windowNo(sec);
+            long toNo = windowNo(sec + 999l);
+            Postings.Snapshot keyData = merge(partitions.subMap(fromNo, true, toNo, true).values(), valKey);
+            if (keyData == null) return null;
+            return sameSecond(keyData, valTstamp);
+        }
+        finally {
+            t += System.nanoTime();
+            metrics.onSameTimeDuration.addAndGet(t);
+        }
+    }
+
+
+    @Override
+    void removeKeys(byte[] key, LongSet storageKeys) {
+        if (key == null) return;
+        for (IndexShard[] partition: partitions.values()) {
+            map(partition, key).removeAll(key, storageKeys);
+        }
+    }
+
+
+    @Override
+    boolean isPartitioned() {
+        return true;
+    }
+
+    /** Drop partitions of evicted window and all windows before it. */
+    @Override
+    void dropWindow(Window window) {
+        long dur = -System.nanoTime();
+        partitions.headMap(windowNo(window.startTstamp), true).clear();
+        dur += System.nanoTime();
+        metrics.droppedPartitions.incrementAndGet();
+        metrics.removeEmptyDuration.addAndGet(dur);
+    }
+
+    @Override
+    long size() {
+        long size = 0;
+        for (IndexShard[] partition: partitions.values()) {
+            for (IndexShard map: partition) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    long inlineKeys() {
+        long count = 0;
+        for (IndexShard[] partition: partitions.values()) {
+            for (IndexShard map: partition) {
+                count += map.inlineCount();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    long promotedKeys() {
+        long count = 0;
+        for (IndexShard[] partition: partitions.values()) {
+            for (IndexShard map: partition) {
+                count += map.promotedCount();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,473 @@
+package mt.fireworks.associations.cache;
+
+import java.util.Arrays;
+
+import org.eclipse.collections.api.list.primitive.MutableLongList;
+import org.eclipse.collections.api.set.primitive.LongSet;
+import org.eclipse.collections.impl.factory.primitive.LongLists;
+
+/**
+ * Storage keys of one association key, ordered by storage key.
+ *
+ * <p>Keys are held in chunks of {@code CHUNK_SIZE}, and published to readers
+ * as immutable {@link Snapshot}, with one volatile write. Readers never lock
+ * and never copy. Writers are serialized on postings.
+ *
+ * <p>Append writes beyond end of current snapshot, into chunk shared with
+ * older snapshots which never read that far, so it copies nothing. Removing
+ * oldest keys moves start of snapshot. Only out of order insert copies, and
+ * only chunks from insert position to the end.
+ *
+ * <p>Once postings hold {@code PACK_THRESHOLD} keys, full chunks before
+ * the last one are packed, see {@link #pack(long[])}. First key of packed
+ * chunk is stored raw, and serves as skip pointer for time range seeks.
+ * Chunk with last key stays raw, so appends don't decode.
+ */
+final class Postings {
+
+    static final int CHUNK_BITS = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** size of postings from which full chunks are packed */
+    static final int PACK_THRESHOLD = 4 * CHUNK_SIZE;
+
+    static final Snapshot EMPTY = new Snapshot(new long[0][], null, 0, 0);
+
+
+    /**
+     * Immutable view of postings. Chunks may be shared with newer snapshots,
+     * which only write past end of this one.
+     */
+    static final class Snapshot {
+        final long[][] chunks;
+
+        /** packed chunks, where raw chunk is null. Null if none is packed. */
+        final byte[][] packed;
+
+        /** position of first key in chunks */
+        final int offset;
+        final int size;
+
+        Snapshot(long[][] chunks, byte[][] packed, int offset, int size) {
+            this.chunks = chunks;
+            this.packed = packed;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /** Key at index. Decodes chunk if it is packed, use {@link #cursor()} to read many keys. */
+        long get(int idx) {
+            int p = offset + idx;
+            return chunk(p >>> CHUNK_BITS)[p & CHUNK_MASK];
+        }
+
+        void set(int idx, long key) {
+            int p = offset + idx;
+            chunks[p >>> CHUNK_BITS][p & CHUNK_MASK] = key;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /** @return keys of chunk, decoded if packed */
+        long[] chunk(int c) {
+            long[] chunk = chunks[c];
+            return chunk != null ? chunk : unpack(packed[c]);
+        }
+
+        boolean isPacked(int c) {
+            return chunks[c] == null;
+        }
+
+        long firstKey(int c) {
+            long[] chunk = chunks[c];
+            return chunk != null ? chunk[0] : Postings.firstKey(packed[c]);
+        }
+
+        Cursor cursor() {
+            return new Cursor(this);
+        }
+
+        /** @return index of first key not less than given key */
+        int lowerBound(long key) {
+            return bound(key, false);
+        }
+
+        /** @return index of first key greater than given key */
+        int upperBound(long key) {
+            return bound(key, true);
+        }
+
+        /**
+         * Binary search of chunk by its first key, then of key within chunk,
+         * so only one packed chunk is decoded.
+         * @return index of first key greater than, or if not strict equal to given key
+         */
+        int bound(long key, boolean strict) {
+            if (size == 0) return 0;
+            int end = offset + size;
+            int first = offset >>> CHUNK_BITS;
+            int last = (end - 1) >>> CHUNK_BITS;
+
+            int lo = first + 1;
+            int hi = last + 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (before(firstKey(mid), key, strict)) lo = mid + 1;
+                else hi = mid;
+            }
+
+            int c = lo - 1;
+            long[] chunk = chunk(c);
+            int from = Math.max(offset, c << CHUNK_BITS);
+            int to = Math.min(end, (c + 1) << CHUNK_BITS);
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (before(chunk[mid & CHUNK_MASK], key, strict)) from = mid + 1;
+                else to = mid;
+            }
+            return from - offset;
+        }
+
+        static boolean before(long k, long key, boolean strict) {
+            return strict ? k <= key : k < key;
+        }
+
+        /** @return copy of keys from inclusive to exclusive index */
+        MutableLongList toList(int from, int to) {
+            MutableLongList list = LongLists.mutable.withInitialCapacity(to - from);
+            Cursor cursor = cursor();
+            for (int idx = from; idx < to; idx++) {
+                list.add(cursor.get(idx));
+            }
+            return list;
+        }
+
+        MutableLongList toList() {
+            return toList(0, size);
+        }
+
+        /** @return bytes of chunks holding keys of this snapshot */
+        long memory() {
+            if (size == 0) return 0;
+            long bytes = 0;
+            for (int c = offset >>> CHUNK_BITS; c <= (offset + size - 1) >>> CHUNK_BITS; c++) {
+                bytes += chunks[c] != null ? 8 * chunks[c].length : packed[c].length;
+            }
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return toList().toString();
+        }
+    }
+
+
+    /**
+     * Reads keys of snapshot by index, forward or backward, decoding each
+     * packed chunk once. Not thread safe, each reader uses its own.
+     */
+    static final class Cursor {
+        final Snapshot snapshot;
+        int cached = -1;
+        long[] keys;
+
+        Cursor(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        long get(int idx) {
+            int p = snapshot.offset + idx;
+            int c = p >>> CHUNK_BITS;
+            if (c != cached) {
+                keys = snapshot.chunk(c);
+                cached = c;
+            }
+            return keys[p & CHUNK_MASK];
+        }
+    }
+
+
+    /** @return snapshot of single key */
+    static Snapshot single(long key) {
+        return new Snapshot(new long[][] {{ key }}, null, 0, 1);
+    }
+
+    /** @return snapshot of given ordered keys */
+    static Snapshot of(long[] keys, int count) {
+        if (count == 0) return EMPTY;
+        long[][] chunks = new long[((count - 1) >>> CHUNK_BITS) + 1][];
+        for (int c = 0; c < chunks.length; c++) {
+            int from = c << CHUNK_BITS;
+            chunks[c] = new long[CHUNK_SIZE];
+            System.arraycopy(keys, from, chunks[c], 0, Math.min(CHUNK_SIZE, count - from));
+        }
+        return new Snapshot(chunks, null, 0, count);
+    }
+
+    /** @return snapshot of keys of all snapshots, in given order */
+    static Snapshot concat(Snapshot... parts) {
+        int count = 0;
+        for (Snapshot s: parts) count += s.size;
+        long[] keys = new long[count];
+        int pos = 0;
+        for (Snapshot s: parts) {
+            Cursor cursor = s.cursor();
+            for (int idx = 0; idx < s.size; idx++) {
+                keys[pos++] = cursor.get(idx);
+            }
+        }
+        return of(keys, count);
+    }
+
+
+    volatile Snapshot snapshot = EMPTY;
+
+    /** bits of storage index in keys, for packing, see {@link TimeKeys#indexBits} */
+    final int indexBits;
+
+    /** set under monitor when postings are removed from index, adds are refused after */
+    boolean removed;
+
+
+    Postings() {
+        this(TimeKeys.INDEX_BITS);
+    }
+
+    Postings(int indexBits) {
+        this.indexBits = indexBits;
+    }
+
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    boolean isEmpty() {
+        return snapshot.size == 0;
+    }
+
+
+    /**
+     * Add key keeping keys ordered, and drop oldest keys over capacity.
+     * At capacity, dropping oldest key only moves start of snapshot, so
+     * bounded add is O(1) amortized, as of ring, and snapshots stay immutable.
+     * @param capacity - max number of keys, unlimited if not positive
+     * @return false if postings were removed from index, and key wasn't added
+     */
+    synchronized boolean add(long key, int capacity) {
+        if (removed) return false;
+        Snapshot s = snapshot;
+        if (s.size == 0 || s.get(s.size - 1) <= key) {
+            s = append(s, key);
+        }
+        else {
+            s = insert(s, s.upperBound(key), key);
+        }
+        if (capacity > 0 && s.size > capacity) {
+            s = dropHead(s, s.size - capacity);
+        }
+        // bounded postings are not packed, their size is bounded and their last keys are read often
+        if (capacity <= 0 && s.size >= PACK_THRESHOLD && ((s.offset + s.size - 1) & CHUNK_MASK) == 0) {
+            s = packChunks(s, indexBits);
+        }
+        snapshot = s;
+        return true;
+    }
+
+    /** Remove keys smaller than given key. */
+    synchronized void removeBelow(long key) {
+        Snapshot s = snapshot;
+        int count = s.lowerBound(key);
+        if (count == 0) return;
+        snapshot = dropHead(s, count);
+    }
+
+    /** Remove given keys. */
+    synchronized void removeAll(LongSet keys) {
+        Snapshot s = snapshot;
+        long[] kept = new long[s.size];
+        int count = 0;
+        Cursor cursor = s.cursor();
+        for (int idx = 0; idx < s.size; idx++) {
+            long k = cursor.get(idx);
+            if (!keys.contains(k)) kept[count++] = k;
+        }
+        if (count == s.size) return;
+        s = of(kept, count);
+        snapshot = count >= PACK_THRESHOLD ? packChunks(s, indexBits) : s;
+    }
+
+
+    static Snapshot append(Snapshot s, long key) {
+        int end = s.offset + s.size;
+        int chunk = end >>> CHUNK_BITS;
+        long[][] chunks = s.chunks;
+        byte[][] packed = s.packed;
+        if (chunk >= chunks.length) {
+            int length = Math.max(2, 2 * chunks.length);
+            chunks = Arrays.copyOf(chunks, length);
+            if (packed != null) packed = Arrays.copyOf(packed, length);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new long[CHUNK_SIZE];
+        }
+        chunks[chunk][end & CHUNK_MASK] = key;
+        return new Snapshot(chunks, packed, s.offset, s.size + 1);
+    }
+
+    static Snapshot insert(Snapshot s, int pos, long key) {
+        int first = (s.offset + pos) >>> CHUNK_BITS;
+        int last = (s.offset + s.size) >>> CHUNK_BITS;
+        int length = Math.max(s.chunks.length, last + 1);
+        long[][] chunks = Arrays.copyOf(s.chunks, length);
+        byte[][] packed = s.packed != null ? Arrays.copyOf(s.packed, length) : null;
+        for (int c = first; c <= last; c++) {
+            if (c >= s.chunks.length) {
+                chunks[c] = new long[CHUNK_SIZE];
+            }
+            else if (s.chunks[c] == null && packed != null && packed[c] != null) {
+                chunks[c] = unpack(packed[c]);
+                packed[c] = null;
+            }
+            else {
+                chunks[c] = s.chunks[c] != null ? s.chunks[c].clone() : new long[CHUNK_SIZE];
+            }
+        }
+
+        Snapshot res = new Snapshot(chunks, packed, s.offset, s.size + 1);
+        Cursor cursor = s.cursor();
+        for (int idx = s.size; idx > pos; idx--) {
+            res.set(idx, cursor.get(idx - 1));
+        }
+        res.set(pos, key);
+        return res;
+    }
+
+    static Snapshot dropHead(Snapshot s, int count) {
+        if (count >= s.size) return EMPTY;
+        int offset = s.offset + count;
+        long[][] chunks = s.chunks;
+        byte[][] packed = s.packed;
+
+        // release dropped chunks once they are half of chunk table
+        int dropped = offset >>> CHUNK_BITS;
+        if (dropped > 0 && 2 * dropped >= chunks.length) {
+            long[][] live = new long[chunks.length][];
+            System.arraycopy(chunks, dropped, live, 0, chunks.length - dropped);
+            chunks = live;
+            if (packed != null) {
+                byte[][] livePacked = new byte[packed.length][];
+                System.arraycopy(packed, dropped, livePacked, 0, packed.length - dropped);
+                packed = livePacked;
+            }
+            offset -= dropped << CHUNK_BITS;
+        }
+        return new Snapshot(chunks, packed, offset, s.size - count);
+    }
+
+    /** @return snapshot with raw full chunks packed, except chunk of last key */
+    static Snapshot packChunks(Snapshot s, int indexBits) {
+        int first = s.offset >>> CHUNK_BITS;
+        int last = (s.offset + s.size - 1) >>> CHUNK_BITS;
+        long[][] chunks = null;
+        byte[][] packed = null;
+        for (int c = first; c < last; c++) {
+            if (s.chunks[c] == null) continue;
+            if (chunks == null) {
+                chunks = s.chunks.clone();
+                packed = s.packed != null ? s.packed.clone() : new byte[chunks.length][];
+            }
+            packed[c] = pack(s.chunks[c], indexBits);
+            chunks[c] = null;
+        }
+        if (chunks == null) return s;
+        return new Snapshot(chunks, packed, s.offset, s.size);
+    }
+
+
+    /**
+     * Pack full chunk. Split of key to tstamp and index is stored in first
+     * byte, and first key is stored raw. Each next key is stored as
+     * difference to previous one, of tstamp and of storage index, as zigzag
+     * varints. Keys of same association key are mostly close in time and in
+     * storage, so a key takes two to four bytes.
+     */
+    static byte[] pack(long[] chunk, int indexBits) {
+        long mask = (1l << indexBits) - 1;
+        byte[] buf = new byte[9 + 2 * 10 * (CHUNK_SIZE - 1)];
+        buf[0] = (byte) indexBits;
+        long prev = chunk[0];
+        int p = RecordEnvelope.putLong(buf, 1, prev);
+        for (int idx = 1; idx < CHUNK_SIZE; idx++) {
+            long k = chunk[idx];
+            p = putVarint(buf, p, zigzag((k >>> indexBits) - (prev >>> indexBits)));
+            p = putVarint(buf, p, zigzag((k & mask) - (prev & mask)));
+            prev = k;
+        }
+        return Arrays.copyOf(buf, p);
+    }
+
+    static long[] unpack(byte[] data) {
+        int indexBits = data[0];
+        long mask = (1l << indexBits) - 1;
+        long[] chunk = new long[CHUNK_SIZE];
+        long prev = firstKey(data);
+        chunk[0] = prev;
+        int[] pos = { 9 };
+        for (int idx = 1; idx < CHUNK_SIZE; idx++) {
+            long time = (prev >>> indexBits) + unzigzag(getVarint(data, pos));
+            long index = (prev & mask) + unzigzag(getVarint(data, pos));
+            prev = time << indexBits | index;
+            chunk[idx] = prev;
+        }
+        return chunk;
+    }
+
+    static long firstKey(byte[] data) {
+        long k = 0;
+        for (int idx = 1; idx < 9; idx++) {
+            k = k << 8 | (data[idx] & 0xFF);
+        }
+        return k;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static int putVarint(byte[] dest, int pos, long v) {
+        while ((v & ~0x7Fl) != 0) {
+            dest[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        dest[pos++] = (byte) v;
+        return pos;
+    }
+
+    /** Read varint at pos[0], and move pos[0] past it. */
+    static long getVarint(byte[] data, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        int p = pos[0];
+        byte b;
+        do {
+            b = data[p++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        pos[0] = p;
+        return v;
+    }
+}
@@ -0,0 +1,116 @@
+package mt.fireworks.associations.cache;
+
+import mt.fireworks.associations.ByteList.Peeker;
+
+/**
+ * Envelope stored in front of record data, holding what eviction needs
+ * to clean indexes without unmarshalling record.
+ *
+ * <pre>
+ * | envelope length: int | tstamp: long | key length: short | key bytes | ... | data |
+ * </pre>
+ *
+ * Key of each index is stored in index order. Key length 0xFFFF marks
+ * record without key for that index.
+ */
+final class RecordEnvelope {
+
+    static final int NO_KEY = 0xFFFF;
+    static final int MAX_KEY_LENGTH = NO_KEY - 1;
+    static final int FIXED_SIZE = 4 + 8;
+
+    private RecordEnvelope() {
+    }
+
+
+    /** @return size of envelope holding given keys */
+    static int size(byte[][] keys) {
+        int size = FIXED_SIZE;
+        if (keys == null) return size;
+        for (byte[] key: keys) {
+            size += 2;
+            if (key == null) continue;
+            if (key.length > MAX_KEY_LENGTH) {
+                throw new RuntimeException("Index key too long for record envelope: " + key.length + " bytes, max: " + MAX_KEY_LENGTH);
+            }
+            size += key.length;
+        }
+        return size;
+    }
+
+
+    /** Write envelope at pos. @return position of record data */
+    static int write(byte[] dest, int pos, int envelopeSize, long tstamp, byte[][] keys) {
+        int p = pos;
+        p = putInt(dest, p, envelopeSize);
+        p = putLong(dest, p, tstamp);
+        if (keys == null) return p;
+        for (byte[] key: keys) {
+            int len = key == null ? NO_KEY : key.length;
+            dest[p++] = (byte) (len >>> 8);
+            dest[p++] = (byte) len;
+            if (key == null) continue;
+            System.arraycopy(key, 0, dest, p, key.length);
+            p += key.length;
+        }
+        return p;
+    }
+
+
+    /** @return size of envelope of record at pos */
+    static int envelopeSize(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+    }
+
+    /** @return tstamp of record at pos */
+    static long tstamp(byte[] data, int pos) {
+        long t = 0;
+        for (int i = 4; i < 12; i++) {
+            t = t << 8 | (data[pos + i] & 0xFF);
+        }
+        return t;
+    }
+
+    /** @return copy of index key of record at pos, or null if record has no key for that index */
+    static byte[] key(byte[] data, int pos, int index) {
+        int end = pos + envelopeSize(data, pos);
+        int p = pos + FIXED_SIZE;
+        for (int i = 0; p < end; i++) {
+            int len = (data[p] & 0xFF) << 8 | (data[p + 1] & 0xFF);
+            p += 2;
+            if (i == index) {
+                if (len == NO_KEY) return null;
+                byte[] key = new byte[len];
+                System.arraycopy(data, p, key, 0, len);
+                return key;
+            }
+            if (len != NO_KEY) p += len;
+        }
+        return null;
+    }
+
+
+    /** @return peeker which skips envelope and reads record data only */
+    static <T> Peeker<T> payload(Peeker<T> peeker) {
+        return (objPos, bucket, pos, len) -> {
+            int env = envelopeSize(bucket, pos);
+            return peeker.peek(objPos, bucket, pos + env, len - env);
+        };
+    }
+
+
+    static int putInt(byte[] dest, int pos, int val) {
+        dest[pos] = (byte) (val >>> 24);
+        dest[pos + 1] = (byte) (val >>> 16);
+        dest[pos + 2] = (byte) (val >>> 8);
+        dest[pos + 3] = (byte) val;
+        return pos + 4;
+    }
+
+    static int putLong(byte[] dest, int pos, long val) {
+        for (int i = 7; i >= 0; i--) {
+            dest[pos++] = (byte) (val >>> (8 * i));
+        }
+        return pos;
+    }
+}
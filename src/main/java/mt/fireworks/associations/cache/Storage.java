@@ -1,34 +1,46 @@
 package mt.fireworks.associations.cache;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import lombok.*;
+import mt.fireworks.associations.BucketCompression;
+import mt.fireworks.associations.BucketPool;
 import mt.fireworks.associations.ByteList;
 import mt.fireworks.associations.ByteList.DataIterator;
 import mt.fireworks.associations.ByteList.Peeker;
+import mt.fireworks.associations.ByteList.Writer;
+import mt.fireworks.associations.SerDes;
 
 class Storage {
 
     // config parameters for this storage
     final Conf conf;
 
-    // stores key epoch, shared across cache
+    // stores key epoch, shared across cache. Millisecond keys start at origin.
     final TimeKeys timeKeys;
 
-    // cache time windows, each window store one timespan
-    final ArrayList<Window> windows = new ArrayList<>();
+    // cache time windows, each window store one timespan. Ring is never
+    // modified, rotation publishes a new one.
+    volatile WindowRing ring;
+
+    // start of window in ring slot 0, when storage was created
+    final long origin;
 
     // window where events happening at currentTime would enter
-    Window nowWindow;
+    volatile Window nowWindow;
+
+    // buckets of evicted windows reused by new windows, null if disabled
+    final BucketPool bucketPool;
+
+    // compression of history windows, null if disabled
+    final BucketCompression compression;
 
-    // windows access lock
-    final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    // readers of published windows, removed window is freed after they leave
+    final Epochs epochs = new Epochs();
 
     @Getter
     final StorageMetric metric = new StorageMetric();
@@ -41,65 +53,217 @@ class Storage {
 
     Storage(Conf conf, Long startDate, TimeKeys timeKeys) {
         this.conf = conf == null ? new Conf() : conf;
-        this.timeKeys = timeKeys;
+        this.bucketPool = this.conf.bucketPoolCapacity > 0 && this.conf.directory == null
+                        ? new BucketPool(this.conf.allocationSize, this.conf.memory, this.conf.bucketPoolCapacity)
+                        : null;
+        boolean compressible = this.conf.compressHistory
+                            && this.conf.directory == null
+                            && this.conf.memory == ByteList.Memory.HEAP
+                            && this.conf.appendChunkSize == 0;
+        this.compression = compressible ? new BucketCompression() : null;
 
         long start = startDate != null ? TimeKeys.normalizieTimestamp(startDate)
                                        : TimeKeys.normalizieTimestamp(System.currentTimeMillis());
 
+        if (this.conf.directory != null) {
+            start = alignToWindowFiles(start);
+        }
+        this.origin = start - this.conf.historyWindowCount * this.conf.windowTimespanMs;
+        this.timeKeys = this.conf.keyLifetimeMs > 0 ? millisecondKeys(origin, this.conf) : timeKeys;
+
+        ArrayList<Window> wins = new ArrayList<>();
         for (int idx = -1 * this.conf.historyWindowCount; idx <= this.conf.futureWindowCount; idx++) {
-            Window win = new Window();
-            win.startTstamp = start + idx * this.conf.windowTimespanMs;
-            win.endTstamp = win.startTstamp + this.conf.windowTimespanMs;
-            win.store = new ByteList(this.conf.allocationSize);
-            this.windows.add(win);
+            Window win = newWindow(start + idx * this.conf.windowTimespanMs);
+            wins.add(win);
 
             if (idx == 0) {
                 this.nowWindow = win;
             }
         }
+        this.ring = new WindowRing(wins.toArray(new Window[0]), 0);
+
+        if (this.conf.directory != null) {
+            deleteStaleFiles();
+        }
     }
 
 
 
-    /** return unsafe index of window to which this tstamp belong */
-    int windowIndexForTstamp(long tstamp) {
-        for (int idx = windows.size() - 1; idx > -1; idx--) {
-            Window win = windows.get(idx);
-            if (win.closed.get()) {
+    /**
+     * @return millisecond keys from origin, which last at least for key lifetime
+     * and range of windows. Index has to address at least one bucket. Epoch is
+     * just before origin, so no key is 0, which marks data not stored.
+     */
+    static TimeKeys millisecondKeys(long origin, Conf conf) {
+        long range = (conf.historyWindowCount + conf.futureWindowCount + 1) * conf.windowTimespanMs;
+        TimeKeys keys = TimeKeys.inMillis(origin - 1, Math.max(conf.keyLifetimeMs, range) + 1);
+        if (keys.maxIndex < conf.allocationSize) {
+            throw new IllegalArgumentException("Key lifetime too long for allocation size. lifetimeMs: '" + conf.keyLifetimeMs + "', maxIndex: '" + keys.maxIndex + "'");
+        }
+        return keys;
+    }
+
+
+    /** @return window starting at tstamp, with new store */
+    Window newWindow(long startTstamp) {
+        Window win = new Window();
+        win.startTstamp = startTstamp;
+        win.endTstamp = win.startTstamp + conf.windowTimespanMs;
+        win.store = newStore(win);
+        return win;
+    }
+
+    /**
+     * @return new store for a window, allocated in configured memory.
+     * If storage directory is set, store is mapped to window file, and
+     * data previously stored to that window is restored.
+     */
+    ByteList newStore(Window win) {
+        if (conf.directory == null) {
+            ByteList store = new ByteList(conf.allocationSize, conf.memory);
+            if (conf.initialBucketSize > 0) store.withBucketGrowth(conf.initialBucketSize);
+            if (conf.ordinalIndex) store.withOrdinalIndex();
+            return store.withAppendChunks(conf.appendChunkSize)
+                    .withNoStraddle(conf.noStraddle)
+                    .withBucketPool(bucketPool)
+                    .withCompression(compression);
+        }
+        File file = new File(conf.directory, windowFileName(win.startTstamp));
+        ByteList store = new ByteList(conf.allocationSize, file);
+        if (conf.ordinalIndex) store.withOrdinalIndex();
+        return store.withAppendChunks(conf.appendChunkSize)
+                    .withNoStraddle(conf.noStraddle);
+    }
+
+    static String windowFileName(long startTstamp) {
+        return "window-" + startTstamp + ".bytes";
+    }
+
+    /**
+     * Align start to windows stored in directory, so that restarted storage
+     * maps same window files as previous run.
+     * @return start of window containing tstamp, in grid of existing files
+     */
+    long alignToWindowFiles(long tstamp) {
+        File[] files = conf.directory.listFiles((dir, name) -> name.startsWith("window-") && name.endsWith(".bytes"));
+        if (files == null || files.length == 0) return tstamp;
+
+        long newest = Long.MIN_VALUE;
+        for (File f: files) {
+            String name = f.getName();
+            String tstampStr = name.substring("window-".length(), name.length() - ".bytes".length());
+            try {
+                newest = Math.max(newest, Long.parseLong(tstampStr));
+            }
+            catch (NumberFormatException e) {
                 continue;
             }
+        }
+        if (newest == Long.MIN_VALUE) return tstamp;
 
-            if (win.startTstamp <= tstamp && tstamp < win.endTstamp) {
-                return idx;
-            }
+        long span = conf.windowTimespanMs;
+        long windowOffset = Math.floorDiv(tstamp - newest, span);
+        return newest + windowOffset * span;
+    }
+
+    /** delete window files left over from windows which are no longer in storage */
+    void deleteStaleFiles() {
+        HashSet<String> names = new HashSet<>();
+        for (Window w: windows()) {
+            names.add(windowFileName(w.startTstamp));
         }
 
-        return -1;
+        File[] files = conf.directory.listFiles((dir, name) -> name.startsWith("window-") && name.endsWith(".bytes"));
+        if (files == null) return;
+        for (File f: files) {
+            if (!names.contains(f.getName())) f.delete();
+        }
     }
 
-    /** @return threadsafe dohvat prozora po timestmapu */
-    Window windowForTstamp(long tstamp) {
-        @Cleanup("unlock") ReadLock rock = rwLock.readLock();
-        rock.lock();
+    /** @return true if any of windows contains data, as it was restored from storage directory */
+    boolean isRestored() {
+        for (Window w: windows()) {
+            if (w.store.getUsedSize() > 0) return true;
+        }
+        return false;
+    }
+
+    /** Close window stores. Mapped windows are unmapped, but their files are kept. */
+    synchronized void close() {
+        Window[] wins = windows();
+        for (Window w: wins) {
+            w.closed.set(true);
+        }
+        epochs.synchronize();
+        for (Window w: wins) {
+            w.store.close();
+        }
+        if (bucketPool != null) bucketPool.clear();
+    }
+
+
+    /** @return current windows, oldest first */
+    Window[] windows() {
+        return ring.toArray();
+    }
 
-        int winIndex = windowIndexForTstamp(tstamp);
-        if (winIndex < 0) return null;
-        Window window = windows.get(winIndex);
-        return window;
+    /** @return ring slot of window to which tstamp would belong */
+    int slotForTstamp(long tstamp, int slotCount) {
+        long windowNo = Math.floorDiv(tstamp - origin, conf.windowTimespanMs);
+        return (int) Math.floorMod(windowNo, (long) slotCount);
+    }
+
+    /** @return index of window to which this tstamp belong, oldest window first, or -1 */
+    int windowIndexForTstamp(long tstamp) {
+        WindowRing r = ring;
+        int slot = slotForTstamp(tstamp, r.slots.length);
+        if (!r.slots[slot].contains(tstamp)) return -1;
+        return Math.floorMod(slot - r.oldest, r.slots.length);
+    }
+
+    /**
+     * @return window to which tstamp belongs, or null. Caller has to be within
+     * {@link Epochs#enter()} section while using returned window.
+     */
+    Window windowForTstamp(long tstamp) {
+        Window[] slots = ring.slots;
+        Window window = slots[slotForTstamp(tstamp, slots.length)];
+        return window.contains(tstamp) ? window : null;
     }
 
 
     /** @return address of stored data, or 0 if data is not storable */
     public long addEntry(long tstamp, byte[] data) {
+        return addEntry(tstamp, null, data);
+    }
+
+    /**
+     * Store data. With record envelope, tstamp and index keys are stored in
+     * front of data, otherwise index keys are ignored.
+     * @param indexKeys key of each index, in index order
+     * @return address of stored data, or 0 if data is not storable
+     */
+    public long addEntry(long tstamp, byte[][] indexKeys, byte[] data) {
+        if (conf.recordEnvelope) {
+            return append(tstamp, data.length, indexKeys, (dest, pos, len) -> System.arraycopy(data, 0, dest, pos, len));
+        }
+
         // add entry to a window bucket
         // generate key and return it
 
         metric.bytesWritten.addAndGet(data.length);
         long start = System.nanoTime();
 
-        Window window = windowForTstamp(tstamp);
-        if (window == null) return 0;
-        long storeIndex = window.store.add(data);
+        long storeIndex;
+        Epochs.Slot slot = epochs.enter();
+        try {
+            Window window = windowForTstamp(tstamp);
+            if (window == null || !timeKeys.inRange(tstamp)) return 0;
+            storeIndex = window.store.add(data);
+        }
+        finally {
+            epochs.exit(slot);
+        }
         long key = timeKeys.key(tstamp, storeIndex);
 
         long end = System.nanoTime();
@@ -108,6 +272,135 @@ class Storage {
         return key;
     }
 
+    /**
+     * Marshall value directly into window store, without intermediate array.
+     * Serdes has to support in place marshalling.
+     * @return address of stored data, or 0 if data is not storable
+     */
+    public <T> long addEntry(long tstamp, T val, int length, SerDes<T> serdes) {
+        return addEntry(tstamp, null, val, length, serdes);
+    }
+
+    /**
+     * In place version of {@link #addEntry(long, byte[][], byte[])}.
+     * @return address of stored data, or 0 if data is not storable
+     */
+    public <T> long addEntry(long tstamp, byte[][] indexKeys, T val, int length, SerDes<T> serdes) {
+        return append(tstamp, length, indexKeys, (dest, pos, len) -> serdes.marshallInto(val, dest, pos));
+    }
+
+    /** Write data of given length to window of tstamp, after envelope if enabled. */
+    long append(long tstamp, int length, byte[][] indexKeys, Writer data) {
+        metric.bytesWritten.addAndGet(length);
+        long start = System.nanoTime();
+
+        int envelopeSize = conf.recordEnvelope ? RecordEnvelope.size(indexKeys) : 0;
+        Writer writer = envelopeSize == 0 ? data : (dest, pos, len) -> {
+            int dataPos = RecordEnvelope.write(dest, pos, envelopeSize, tstamp, indexKeys);
+            data.write(dest, dataPos, length);
+        };
+
+        long storeIndex;
+        Epochs.Slot slot = epochs.enter();
+        try {
+            Window window = windowForTstamp(tstamp);
+            if (window == null || !timeKeys.inRange(tstamp)) return 0;
+            storeIndex = window.store.add(envelopeSize + length, writer);
+        }
+        finally {
+            epochs.exit(slot);
+        }
+        long key = timeKeys.key(tstamp, storeIndex);
+        metric.envelopeBytes.addAndGet(envelopeSize);
+
+        long end = System.nanoTime();
+        metric.writeDuration.addAndGet(end - start);
+
+        return key;
+    }
+
+
+    /**
+     * Store batch of records, each written in place by its writer. Records
+     * are grouped by window, and space of each group is reserved in one step.
+     * With record envelope, tstamp and index keys are stored in front of data.
+     * @param indexKeys keys of each index per record, in index order
+     * @return address of each record, or 0 if record is not storable
+     */
+    public long[] addEntries(long[] tstamps, byte[][][] indexKeys, int[] lengths, Writer[] writers) {
+        int count = tstamps.length;
+        long start = System.nanoTime();
+        long[] keys = new long[count];
+
+        long bytes = 0;
+        int[] sizes = new int[count];
+        Writer[] fills = new Writer[count];
+        for (int idx = 0; idx < count; idx++) {
+            int envelopeSize = conf.recordEnvelope ? RecordEnvelope.size(indexKeys[idx]) : 0;
+            Writer data = writers[idx];
+            int length = lengths[idx];
+            long tstamp = tstamps[idx];
+            byte[][] recordKeys = conf.recordEnvelope ? indexKeys[idx] : null;
+            sizes[idx] = envelopeSize + length;
+            fills[idx] = envelopeSize == 0 ? data : (dest, pos, len) -> {
+                int dataPos = RecordEnvelope.write(dest, pos, envelopeSize, tstamp, recordKeys);
+                data.write(dest, dataPos, length);
+            };
+            bytes += length;
+        }
+        metric.bytesWritten.addAndGet(bytes);
+
+        long envelopes = 0;
+        Window[] windows = new Window[count];
+        int[] group = new int[count];
+        Epochs.Slot slot = epochs.enter();
+        try {
+            for (int idx = 0; idx < count; idx++) {
+                if (!timeKeys.inRange(tstamps[idx])) continue;
+                windows[idx] = windowForTstamp(tstamps[idx]);
+            }
+
+            for (int first = 0; first < count; first++) {
+                Window window = windows[first];
+                if (window == null) continue;
+
+                int groupSize = 0;
+                for (int idx = first; idx < count; idx++) {
+                    if (windows[idx] == window) group[groupSize++] = idx;
+                }
+                int[] groupSizes = new int[groupSize];
+                Writer[] groupFills = new Writer[groupSize];
+                for (int n = 0; n < groupSize; n++) {
+                    groupSizes[n] = sizes[group[n]];
+                    groupFills[n] = fills[group[n]];
+                }
+
+                long[] storeIndexes = window.store.addAll(groupSizes, groupFills);
+                for (int n = 0; n < groupSize; n++) {
+                    int idx = group[n];
+                    keys[idx] = timeKeys.key(tstamps[idx], storeIndexes[n]);
+                    windows[idx] = null;
+                    envelopes += sizes[idx] - lengths[idx];
+                }
+            }
+        }
+        finally {
+            epochs.exit(slot);
+        }
+        metric.envelopeBytes.addAndGet(envelopes);
+
+        long end = System.nanoTime();
+        metric.writeDuration.addAndGet(end - start);
+        return keys;
+    }
+
+
+    /** @return peeker of record data, which skips record envelope if enabled */
+    <T> Peeker<T> payload(Peeker<T> peeker) {
+        return conf.recordEnvelope ? RecordEnvelope.payload(peeker) : peeker;
+    }
+
+
     /**
      * Fetch data stored under key. Returned array is newly allocated.
      * @return byte array of entry under key or null.
@@ -115,10 +408,21 @@ class Storage {
     public byte[] getEntry(long key) {
         long tstamp = timeKeys.tstamp(key);
         long index = timeKeys.index(key);
-        Window window = windowForTstamp(tstamp);
-        if (window == null) return null;
-        byte[] data = window.store.get(index);
-        return data;
+        Epochs.Slot slot = epochs.enter();
+        try {
+            Window window = windowForTstamp(tstamp);
+            if (window == null) return null;
+            if (!conf.recordEnvelope) return window.store.get(index);
+            byte[] data = window.store.peek(index, RecordEnvelope.payload((objPos, bucket, pos, len) -> {
+                byte[] res = new byte[len];
+                System.arraycopy(bucket, pos, res, 0, len);
+                return res;
+            }));
+            return data;
+        }
+        finally {
+            epochs.exit(slot);
+        }
     }
 
 
@@ -131,22 +435,76 @@ class Storage {
     public <T> T getEntry2(long key, CacheSerDes<T> serdes) {
         long tstamp = timeKeys.tstamp(key);
         long index = timeKeys.index(key);
-        Window window = windowForTstamp(tstamp);
-        if (window == null) return null;
-        T val = window.store.peek(index, (objPos, bucket, pos, len) -> serdes.unmarshall(bucket, pos, len));
-        return val;
+        Epochs.Slot slot = epochs.enter();
+        try {
+            Window window = windowForTstamp(tstamp);
+            if (window == null) return null;
+            T val = window.store.peek(index, payload((objPos, bucket, pos, len) -> serdes.unmarshall(bucket, pos, len)));
+            return val;
+        }
+        finally {
+            epochs.exit(slot);
+        }
     }
 
+    /**
+     * Read newest entries of window containing tstamp, newest first. Windows with
+     * ordinal index read only requested entries, others are walked from start.
+     * @return at most count entries, empty if there is no window for tstamp
+     */
+    public <T> List<T> latestEntries(long tstamp, int count, Peeker<T> peeker) {
+        Epochs.Slot slot = epochs.enter();
+        try {
+            return latestEntries(windowForTstamp(tstamp), count, payload(peeker));
+        }
+        finally {
+            epochs.exit(slot);
+        }
+    }
+
+    <T> List<T> latestEntries(Window window, int count, Peeker<T> peeker) {
+        if (window == null || count <= 0) return Collections.emptyList();
+        ByteList store = window.store;
+
+        ArrayList<T> res = new ArrayList<>(count);
+        if (store.hasOrdinalIndex()) {
+            Iterator<T> iter = store.reverseIterator(peeker);
+            while (iter.hasNext() && res.size() < count) {
+                res.add(iter.next());
+            }
+            return res;
+        }
+
+        ArrayDeque<T> last = new ArrayDeque<>(count);
+        Iterator<T> iter = store.iterator(peeker);
+        while (iter.hasNext()) {
+            if (last.size() == count) last.pollFirst();
+            last.addLast(iter.next());
+        }
+        Iterator<T> desc = last.descendingIterator();
+        while (desc.hasNext()) {
+            res.add(desc.next());
+        }
+        return res;
+    }
+
+
     /** @return true if value under key equal to passed data? */
     public boolean equal(long key, byte[] data, CacheSerDes<?> serdes) {
         long tstamp = timeKeys.tstamp(key);
         long index = timeKeys.index(key);
-        Window window = windowForTstamp(tstamp);
-        if (window == null) return false;
-        Boolean res = window.store.peek(index, (objPos, bucket, pos, len) -> {
-            return serdes.equalsD(bucket, pos, len, data, 0, data.length);
-        });
-        return res;
+        Epochs.Slot slot = epochs.enter();
+        try {
+            Window window = windowForTstamp(tstamp);
+            if (window == null) return false;
+            Boolean res = window.store.peek(index, payload((objPos, bucket, pos, len) -> {
+                return serdes.equalsD(bucket, pos, len, data, 0, data.length);
+            }));
+            return res;
+        }
+        finally {
+            epochs.exit(slot);
+        }
     }
 
 
@@ -154,7 +512,7 @@ class Storage {
     public long[] timespan() {
         long min = Long.MAX_VALUE;
         long max = Long.MIN_VALUE;
-        for (Window w: windows) {
+        for (Window w: windows()) {
             min = Math.min(min, w.startTstamp);
             max = Math.max(max, w.endTstamp);
         }
@@ -162,76 +520,123 @@ class Storage {
     }
 
 
-    public Window moveWindows() {
-        @Cleanup("unlock") WriteLock wock = rwLock.writeLock();
-        wock.lock();
-
-        // add future window
-        int lastWinIndex = windows.size() - 1;
-        Window lastWindow = windows.get(lastWinIndex);
-        Window win = new Window();
-        win.startTstamp = lastWindow.endTstamp;
-        win.endTstamp = win.startTstamp + conf.windowTimespanMs;
-        win.store = new ByteList(conf.allocationSize);
-        windows.add(win);
+    /**
+     * Publish windows moved a step in future. Readers are never blocked,
+     * those which already hold removed window may still use it, until
+     * it is released with {@link #retire(Window)}.
+     * @return removed oldest window
+     * @throws IllegalStateException if new window is past range of storage keys
+     */
+    public synchronized Window moveWindows() {
+        WindowRing r = ring;
+        Window oldestWin = r.slots[r.oldest];
+
+        // future window takes slot of oldest window, as it starts
+        // exactly one ring span later
+        long start = oldestWin.startTstamp + r.slots.length * conf.windowTimespanMs;
+        long end = start + conf.windowTimespanMs - 1;
+        if (!timeKeys.inRange(end)) {
+            String msg = "Window [" + start + ", " + end + "] is past range of storage keys, which ends at: " + timeKeys.maxTstamp()
+                       + ". Windows are not moved, cache has to be recreated with longer key lifetime.";
+            throw new IllegalStateException(msg);
+        }
+        Window win = newWindow(start);
 
-        // move now window
-        int nowWinIdx = windowIndexForTstamp(nowWindow.endTstamp);
-        Window newNowWindow = windows.get(nowWinIdx);
-        nowWindow = newNowWindow;
+        Window[] slots = r.slots.clone();
+        slots[r.oldest] = win;
+        WindowRing moved = new WindowRing(slots, (r.oldest + 1) % slots.length);
 
-        // remove oldest window
-        Window oldestWin = windows.get(0);
+        ring = moved;
+        nowWindow = slots[slotForTstamp(nowWindow.endTstamp, slots.length)];
         oldestWin.closed.set(true);
-        windows.remove(0);
 
         return oldestWin;
     }
 
 
+    /**
+     * Wait for readers which could still hold window removed by
+     * {@link #moveWindows()}, and free its memory.
+     */
+    void retire(Window window) {
+        epochs.synchronize();
+        window.store.free();
+    }
+
+
+    /**
+     * Compress full buckets of windows older than now window. Late writes
+     * to history windows fill new buckets, which are compressed on later call.
+     * @return number of compressed buckets
+     */
+    int compressHistory() {
+        if (compression == null) return 0;
+
+        long nowStart = nowWindow.startTstamp;
+        int count = 0;
+        for (Window w: ring.slots) {
+            if (w.endTstamp > nowStart || w.closed.get()) continue;
+            count += w.store.compress();
+        }
+        return count;
+    }
+
+
     public <T> Iterator<T> iterator(Peeker<T> peeker) {
-        return new StorageIterator<>(windows, peeker);
+        return new StorageIterator<>(Arrays.asList(windows()), payload(peeker));
     }
 
+    /**
+     * Iterates records of windows, oldest first. Iterator doesn't hold windows
+     * as readers do, so off heap or pooled window retired meanwhile may be freed
+     * under it. Rest of such window is skipped, as its records are evicted. Record
+     * is read ahead by {@link #hasNext()}, so window freed after it doesn't fail
+     * {@link #next()}.
+     */
     public static class StorageIterator<T> implements Iterator<T> {
         Peeker<T> peeker;
-        Iterator<DataIterator<T>> higherIterator;
+        Iterator<Window> higherIterator;
+        Window window;
         DataIterator<T> lowerIterator;
+        T nextRecord;
+        boolean fetched;
 
         public StorageIterator(List<Window> windows, Peeker<T> peeker) {
-            ArrayList<Window> winCopy = new ArrayList<>(windows);
-            ArrayList<DataIterator<T>> dataIterators = new ArrayList<>();
-            for (Window win: winCopy) {
-                DataIterator<T> dataIterator = win.store.iterator(peeker);;
-                dataIterators.add(dataIterator);
-            }
-            higherIterator = dataIterators.iterator();
+            this.peeker = peeker;
+            higherIterator = new ArrayList<>(windows).iterator();
         }
 
         public boolean hasNext() {
-            if (lowerIterator == null) {
-                if (!higherIterator.hasNext()) {
-                    return false;
+            while (!fetched) {
+                if (lowerIterator == null) {
+                    if (!higherIterator.hasNext()) return false;
+                    window = higherIterator.next();
+                    lowerIterator = window.store.iterator(peeker);
                 }
-                lowerIterator = higherIterator.next();
-            }
 
-            if (lowerIterator.hasNext()) {
-                return true;
-            }
-
-            while (higherIterator.hasNext()) {
-                lowerIterator = higherIterator.next();
-                if (lowerIterator.hasNext()) {
-                    return true;
+                try {
+                    if (lowerIterator.hasNext()) {
+                        nextRecord = lowerIterator.next();
+                        fetched = true;
+                    }
+                    else {
+                        lowerIterator = null;
+                    }
+                }
+                catch (IllegalStateException e) {
+                    if (!window.closed.get()) throw e;
+                    lowerIterator = null;
                 }
             }
-
-            return false;
+            return true;
         }
 
         public T next() {
-            return lowerIterator.next();
+            if (!hasNext()) throw new NoSuchElementException();
+            T res = nextRecord;
+            nextRecord = null;
+            fetched = false;
+            return res;
         }
     }
 
@@ -241,9 +646,10 @@ class Storage {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Storage summary\n");
-        sb.append("Window count: ").append(windows.size()).append("\n");
-        for (int idx = 0; idx < windows.size(); idx++) {
-            Window win = windows.get(idx);
+        Window[] wins = windows();
+        sb.append("Window count: ").append(wins.length).append("\n");
+        for (int idx = 0; idx < wins.length; idx++) {
+            Window win = wins[idx];
             sb.append("  ").append(idx + 1).append(". ");
             sb.append(win.startTstamp).append(" - ").append(win.endTstamp);
             sb.append(" [").append(TimeUtils.readableTstamp(win.startTstamp)).append(" - ");
@@ -261,6 +667,7 @@ class Storage {
 
         AtomicLong bytesWritten = new AtomicLong();
         AtomicLong writeDuration = new AtomicLong();
+        AtomicLong envelopeBytes = new AtomicLong();
 
         @Override
         public String text(boolean coments) {
@@ -275,33 +682,73 @@ class Storage {
             String windows = "[" + Storage.this.conf.historyWindowCount + "-1-" + Storage.this.conf.futureWindowCount + "]";
             String winSize =  Storage.this.conf.windowTimespanMs + " ms (" + TimeUtils.toReadable(Storage.this.conf.windowTimespanMs * 1000_000) + ")";
 
-            ArrayList<Window> wins = Storage.this.windows;
+            Window[] wins = Storage.this.windows();
             long totalAllocated = 0;
             long totalUsed = 0;
+            long totalPadding = 0;
             for (Window w: wins) {
                 ByteList store = w.store;
                 totalAllocated += store.getAllocatedSize();
                 totalUsed += store.getUsedSize();
+                totalPadding += store.getPaddingSize();
             }
 
             String text = "## " + name + " metric:\n"
                         + " bytesWritten: " + bytesWritten + " bytes, dur: " + durStr + " [" + speedStr + "]\n"
-                        + " window count: " + Storage.this.windows.size() + " " + windows + "\n"
+                        + " window count: " + wins.length + " " + windows + "\n"
                         + "  window span: " + winSize + "\n"
                         + "timespan from: " + from + "\n"
                         + "           to: " + to + "\n"
                         + "    allocated: " + totalAllocated + " bytes\n"
                         + "         used: " + totalUsed + " bytes\n"
+                        + "      padding: " + totalPadding + " bytes\n"
+                        + envelopeText()
+                        + poolText()
+                        + compressionText()
                         + " win capacity: " + conf.allocationSize + " bytes";
 
             return text;
         }
 
+        String envelopeText() {
+            if (!Storage.this.conf.recordEnvelope) return "";
+            long env = envelopeBytes.get();
+            long total = env + bytesWritten.get();
+            String share = String.format("%.2f%%", total == 0 ? 0 : 100d * env / total);
+            return "     envelope: " + env + " bytes [" + share + " of written]\n";
+        }
+
+        String poolText() {
+            BucketPool pool = Storage.this.bucketPool;
+            if (pool == null) return "";
+            String hitRate = String.format("%.2f%%", 100d * pool.getHitRate());
+            return "  bucket pool: " + pool.getPooledBytes() + "/" + pool.getCapacity() + " bytes, "
+                 + "hits: " + pool.getHits() + ", misses: " + pool.getMisses() + " [" + hitRate + "], "
+                 + "discarded: " + pool.getDiscarded() + "\n";
+        }
+
+        String compressionText() {
+            BucketCompression c = Storage.this.compression;
+            if (c == null) return "";
+            String ratio = String.format("%.2fx", c.getRatio());
+            String encode = TimeUtils.toReadable(c.getEncodeTime());
+            String decode = TimeUtils.toReadable(c.getDecodeTime());
+            long avgDecode = c.getDecodeCount() == 0 ? 0 : c.getDecodeTime() / c.getDecodeCount();
+            return "  compression: " + ratio + ", " + c.getCompressedBuckets() + " buckets, "
+                 + c.getRawBytes() + " -> " + c.getCompressedBytes() + " bytes, "
+                 + "rejected: " + c.getRejectedBuckets() + ", encode: " + encode + "\n"
+                 + "       decode: " + c.getDecodeCount() + " buckets, dur: " + decode
+                 + " [avg " + TimeUtils.toReadable(avgDecode) + "]\n";
+        }
+
         @Override
         public String reset() {
             String text = text(false);
             bytesWritten.set(0);
             writeDuration.set(0);
+            envelopeBytes.set(0);
+            if (Storage.this.bucketPool != null) Storage.this.bucketPool.resetMetrics();
+            if (Storage.this.compression != null) Storage.this.compression.resetMetrics();
             return text;
         }
     }
@@ -319,6 +766,56 @@ class Storage {
         int futureWindowCount = 1;
 
         int allocationSize = 1 * 1024 * 1024;
+
+        /** memory used for window stores */
+        ByteList.Memory memory = ByteList.Memory.HEAP;
+
+        /**
+         * Directory of window files. If set, windows are stored in memory mapped
+         * files, one file per window, and are restored on startup.
+         */
+        File directory;
+
+        /** size of thread local append chunk of window stores, 0 if disabled */
+        int appendChunkSize = 0;
+
+        /** objects of window stores never cross bucket boundary */
+        boolean noStraddle = false;
+
+        /**
+         * Max bytes of buckets pooled for reuse by new windows, 0 disables pool.
+         * Pool isn't used with storage directory, as mapped buckets belong to files.
+         */
+        long bucketPoolCapacity = 0;
+
+        /**
+         * Size of first bucket of a window store, following buckets double in size
+         * up to allocation size. 0 means all buckets are of allocation size.
+         * Not used with storage directory, as window files are mapped on restart.
+         */
+        int initialBucketSize = 0;
+
+        /** window stores keep ordinal index, for reading newest entries first */
+        boolean ordinalIndex = false;
+
+        /**
+         * Compress full buckets of history windows on tick. Used only for heap
+         * windows without storage directory and append chunks.
+         */
+        boolean compressHistory = false;
+
+        /**
+         * Store tstamp and index keys in envelope in front of each record,
+         * so indexes are cleaned on tick without unmarshalling records.
+         */
+        boolean recordEnvelope = false;
+
+        /**
+         * Keys hold tstamp in milliseconds from origin, for at least this
+         * long. Bits left to index limit window size. 0 keeps default keys,
+         * in seconds since start of year.
+         */
+        long keyLifetimeMs = 0;
     }
 
     static class Window {
@@ -333,5 +830,37 @@ class Storage {
         final AtomicBoolean closed = new AtomicBoolean(false);
 
         ByteList store;
+
+        /** @return true if tstamp is within open window */
+        boolean contains(long tstamp) {
+            return startTstamp <= tstamp && tstamp < endTstamp && !closed.get();
+        }
+    }
+
+
+    /**
+     * Windows in ring of slots. Window is in slot computed from its start,
+     * so window of tstamp is found without search, and new window reuses
+     * slot of removed oldest window. Ring is never modified.
+     */
+    static class WindowRing {
+        final Window[] slots;
+
+        /** slot of oldest window */
+        final int oldest;
+
+        WindowRing(Window[] slots, int oldest) {
+            this.slots = slots;
+            this.oldest = oldest;
+        }
+
+        /** @return windows, oldest first */
+        Window[] toArray() {
+            Window[] res = new Window[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                res[i] = slots[(oldest + i) % slots.length];
+            }
+            return res;
+        }
     }
 }
@@ -0,0 +1,95 @@
+package mt.fireworks.associations.cache;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Ticks cache when clock passes end of now window.
+ *
+ * <p>Scheduler wakes at least once per {@code lagMs}, so window is rotated
+ * within lag after boundary, unless scheduler thread is starved. If clock
+ * is more than a window ahead, as after suspend, missed ticks are run at
+ * once.
+ */
+class TickScheduler {
+
+    final BytesCache<?> cache;
+    final long lagMs;
+    final LongSupplier clock;
+
+    ScheduledExecutorService executor;
+
+
+    TickScheduler(BytesCache<?> cache, long lagMs, LongSupplier clock) {
+        if (lagMs <= 0) throw new IllegalArgumentException("Tick lag has to be positive: " + lagMs);
+        this.cache = cache;
+        this.lagMs = lagMs;
+        this.clock = clock;
+    }
+
+
+    void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bytes-cache-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.execute(this::run);
+    }
+
+    void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    void run() {
+        long delay = lagMs;
+        try {
+            delay = runDue();
+        }
+        finally {
+            if (!executor.isShutdown()) executor.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Tick if boundary of now window has passed.
+     * @return ms to wait before next call
+     */
+    long runDue() {
+        Storage storage = cache.storage;
+        long now = clock.getAsLong();
+        long boundary = storage.nowWindow.endTstamp;
+
+        while (now >= boundary) {
+            long lateness = now - boundary;
+            BytesCache.BytesKeyedCacheMetrics m = cache.metrics;
+            m.scheduledTicks.incrementAndGet();
+            m.lastTickLateness.set(lateness);
+            m.maxTickLateness.accumulateAndGet(lateness, Math::max);
+            if (lateness > lagMs) m.lateTicks.incrementAndGet();
+
+            try {
+                cache.tick();
+            }
+            catch (RuntimeException e) {
+                m.failedTicks.incrementAndGet();
+                throw e;
+            }
+            now = clock.getAsLong();
+            boundary = storage.nowWindow.endTstamp;
+        }
+
+        return Math.min(boundary - now, lagMs);
+    }
+}
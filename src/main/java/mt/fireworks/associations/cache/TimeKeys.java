@@ -15,17 +15,70 @@ import mt.fireworks.associations.BitsAndBytes;
  *
  * Index je pohranjen do 35 bitova. U slučaju korištenja indexa većeg od 2^35-1,
  * kod baca grešku.
+ *
+ * Raspored ključa može biti i milisekundni, vidi {@link #inMillis(long, long)}:
+ * tstamp je tada offset u milisekundama od početka storagea, pa je vrijeme
+ * zapisa točno poznato iz samog ključa. Broj bitova tstampa određen je
+ * trajanjem ključeva, a preostali bitovi pripadaju indexu.
  */
 class TimeKeys {
 
-    final long epoch = startingYear();
-    final long maxIndex = (1l << 35) - 1l; // 34_359_738_367
-    final long mask = BitsAndBytes.lmask(35);
+    /** bits of storage index of default layout, lower part of key */
+    static final int INDEX_BITS = 35;
+
+    /** least bits of storage index of millisecond layout, 16 MB per window */
+    static final int MIN_INDEX_BITS = 24;
+
+    /** tstamp of key with time offset 0 */
+    final long epoch;
+
+    /** milliseconds per unit of time offset, 1000 if key holds seconds */
+    final long unitMs;
+
+    /** bits of storage index, lower part of key */
+    final int indexBits;
+
+    final long maxIndex;
+    final long mask;
+
+    /** largest time offset, keys stay positive */
+    final long maxOffset;
+
+
+    /** Default layout, seconds since start of year and 35 bits of index. */
+    TimeKeys() {
+        this(startingYear(), 1000l, INDEX_BITS);
+    }
+
+    TimeKeys(long epoch, long unitMs, int indexBits) {
+        this.epoch = epoch;
+        this.unitMs = unitMs;
+        this.indexBits = indexBits;
+        this.maxIndex = (1l << indexBits) - 1l;
+        this.mask = BitsAndBytes.lmask(indexBits);
+        this.maxOffset = (1l << (63 - indexBits)) - 1l;
+    }
+
+    /**
+     * Millisecond layout. Time offset takes as many bits as needed for
+     * given lifetime, rest of key is index.
+     *
+     * @param epoch - tstamp of oldest key, as start of storage
+     * @param lifetimeMs - time after epoch for which keys can be made
+     */
+    static TimeKeys inMillis(long epoch, long lifetimeMs) {
+        int timeBits = 64 - Long.numberOfLeadingZeros(Math.max(1, lifetimeMs));
+        int indexBits = 63 - timeBits;
+        if (indexBits < MIN_INDEX_BITS) {
+            throw new IllegalArgumentException("Key lifetime too long for millisecond keys. lifetimeMs: '" + lifetimeMs + "', index bits: '" + indexBits + "'");
+        }
+        return new TimeKeys(epoch, 1, indexBits);
+    }
 
 
 
     /** @return tstamp of current new year, unless if current month is January. Than it is last new year */
-    long startingYear() {
+    static long startingYear() {
         Year y = Year.now(ZoneId.of("UTC"));
 
         Month currentMonth = LocalDate.now().getMonth();
@@ -42,25 +95,64 @@ class TimeKeys {
 
 
     /** @return key composed of tstamp and index
-     * key stores tstamp in secods, so millisecond part of tstamp is gone
-     * during enconding proces.
+     * key stores tstamp in units of layout, so with default layout
+     * millisecond part of tstamp is gone during enconding proces.
      **/
     long key(final long tstamp, final long index) {
         if (index > maxIndex) {
             throw new RuntimeException("Index outside allowed range. index: '" + index + "', maxIndex: '" + maxIndex + "'");
         }
 
-        long offsetMs = tstamp - epoch;
-        long offsetSec = offsetMs / 1000;
-        long hi = offsetSec << 35;
+        long offset = Math.floorDiv(tstamp - epoch, unitMs);
+        if (offset < 0 || offset > maxOffset) {
+            throw new RuntimeException("Tstamp outside key range. tstamp: '" + tstamp + "', epoch: '" + epoch + "', maxOffset: '" + maxOffset + "'");
+        }
+        long hi = offset << indexBits;
         long lo = index & mask;
         long key = hi | lo;
         return key;
     }
 
+    /** @return true if tstamp can be encoded in key */
+    boolean inRange(final long tstamp) {
+        long offset = Math.floorDiv(tstamp - epoch, unitMs);
+        return offset >= 0 && offset <= maxOffset;
+    }
+
+    /** @return last tstamp which can be encoded in key */
+    long maxTstamp() {
+        return epoch + (maxOffset + 1) * unitMs - 1;
+    }
+
+    /**
+     * @return smallest key of tstamp unit. Keys of older tstamps are smaller.
+     * Tstamps outside key range give bounds of all keys.
+     */
+    long lowestKey(final long tstamp) {
+        long offset = Math.floorDiv(tstamp - epoch, unitMs);
+        if (offset < 0) return 0;
+        if (offset > maxOffset) return Long.MAX_VALUE;
+        return offset << indexBits;
+    }
+
     /** @return tstamp in ms, extracted from key */
     public long tstamp(final long key) {
-        return (key >>> 35) * 1000l + epoch;
+        return (key >>> indexBits) * unitMs + epoch;
+    }
+
+    /** @return true if keys hold tstamp to millisecond */
+    boolean isExact() {
+        return unitMs == 1;
+    }
+
+    /** @return tstamp rounded down to unit of key */
+    long floor(final long tstamp) {
+        return epoch + Math.floorDiv(tstamp - epoch, unitMs) * unitMs;
+    }
+
+    /** @return tstamp rounded up to unit of key */
+    long ceil(final long tstamp) {
+        return floor(tstamp + unitMs - 1);
     }
 
     /**
@@ -85,8 +85,7 @@ public class ByteListBenchmark {
         double efficency = (double) storageSize / data_written;
         System.out.println("Storage size: " + storageSize + " bytes");
         System.out.println("Efficency:    " + df.format(efficency));
-        int bucketCount = bl.buckets.size();
-        long bucketSize = bl.bucketSize * bucketCount;
+        long bucketSize = bl.getAllocatedSize();
         double efficency2 = (double) bucketSize / data_written;
         System.out.println("bucketSize:   " + bucketSize + " bytes");
         System.out.println("Efficency 2:  " + df.format(efficency2));
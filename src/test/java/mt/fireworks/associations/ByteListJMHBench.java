@@ -0,0 +1,124 @@
+package mt.fireworks.associations;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+
+/**
+ * Scaling of concurrent ByteList writers, from 1 to 32 threads.
+ * Each thread count is run separately, and all threads write to same list,
+ * as producers do when writing to {@code Storage.nowWindow}.
+ *
+ * Run main to get results. Writers store 32 to 512 byte records, and list is
+ * replaced once it grows over 256 Mb to keep memory bounded. Readers peek at
+ * random position of a prefilled list. Chunked writers append to thread
+ * local chunks of 64 Kb, see {@link ByteList#withAppendChunks(int)}.
+ */
+public class ByteListJMHBench {
+
+    static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+    static final long LIST_LIMIT = 256 * 1024 * 1024;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+
+    @State(Scope.Benchmark)
+    public static class WriteState {
+        volatile ByteList list;
+        byte[][] data;
+
+        ByteList newList() {
+            return new ByteList();
+        }
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            list = newList();
+            data = new byte[1024][];
+            ThreadLocalRandom rng = ThreadLocalRandom.current();
+            for (int i = 0; i < data.length; i++) {
+                data[i] = new byte[rng.nextInt(32, 512)];
+                rng.nextBytes(data[i]);
+            }
+        }
+
+        ByteList list() {
+            ByteList bl = list;
+            if (bl.getUsedSize() < LIST_LIMIT) return bl;
+            synchronized (this) {
+                if (list == bl) list = newList();
+                return list;
+            }
+        }
+    }
+
+
+    @State(Scope.Benchmark)
+    public static class ChunkedWriteState extends WriteState {
+        ByteList newList() {
+            return new ByteList().withAppendChunks(CHUNK_SIZE);
+        }
+    }
+
+
+    @State(Scope.Benchmark)
+    public static class ReadState {
+        ByteList list;
+        long[] keys;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            list = new ByteList();
+            keys = new long[1_000_000];
+            ThreadLocalRandom rng = ThreadLocalRandom.current();
+            for (int i = 0; i < keys.length; i++) {
+                byte[] d = new byte[rng.nextInt(32, 512)];
+                keys[i] = list.add(d);
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        for (int threads: THREAD_COUNTS) {
+            Options opt = new OptionsBuilder()
+                    .include("mt\\.fireworks\\.associations\\.ByteListJMHBench\\..*")
+                    .forks(1)
+                    .threads(threads)
+                    .warmupIterations(1)
+                    .warmupTime(TimeValue.seconds(3))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(3))
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .mode(Mode.Throughput)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+
+
+    @Benchmark
+    public long add(WriteState state) {
+        byte[] d = state.data[ThreadLocalRandom.current().nextInt(state.data.length)];
+        return state.list().add(d);
+    }
+
+
+    @Benchmark
+    public long addChunked(ChunkedWriteState state) {
+        byte[] d = state.data[ThreadLocalRandom.current().nextInt(state.data.length)];
+        return state.list().add(d);
+    }
+
+
+    @Benchmark
+    public int peek(ReadState state) {
+        long key = state.keys[ThreadLocalRandom.current().nextInt(state.keys.length)];
+        return state.list.peek(key, (objPos, bucket, pos, len) -> len);
+    }
+
+}
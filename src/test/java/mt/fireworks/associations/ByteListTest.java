@@ -3,9 +3,13 @@ package mt.fireworks.associations;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -151,4 +155,289 @@ public class ByteListTest {
         Assert.assertEquals(randomData.size(), counter.get());
     }
 
+
+    @Test
+    public void addAllBatches() {
+        ByteList[] lists = {
+            new ByteList(64 * 1024),
+            new ByteList(64 * 1024, ByteList.Memory.OFF_HEAP),
+            new ByteList(64 * 1024).withNoStraddle(true),
+            new ByteList(64 * 1024).withOrdinalIndex()
+        };
+
+        for (ByteList byteList: lists) {
+            ArrayList<byte[]> written = new ArrayList<>();
+            ArrayList<Long> keys = new ArrayList<>();
+            for (int b = 0; b < 100; b++) {
+                int count = ThreadLocalRandom.current().nextInt(1, 200);
+                int[] lengths = new int[count];
+                ByteList.Writer[] writers = new ByteList.Writer[count];
+                for (int i = 0; i < count; i++) {
+                    byte[] data = randomData(1, 2000);
+                    lengths[i] = data.length;
+                    writers[i] = (dest, pos, len) -> System.arraycopy(data, 0, dest, pos, len);
+                    written.add(data);
+                }
+                for (long key: byteList.addAll(lengths, writers)) keys.add(key);
+            }
+
+            for (int i = 0; i < written.size(); i++) {
+                assertArrayEquals(written.get(i), byteList.get(keys.get(i)));
+            }
+            assertEquals(written.size(), byteList.size());
+            byteList.free();
+        }
+    }
+
+
+    @Test
+    public void testOffHeap() {
+        ByteList byteList = new ByteList(64 * 1024, ByteList.Memory.OFF_HEAP);
+
+        ArrayList<byte[]> written = new ArrayList<>();
+        ArrayList<Long> keys = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            byte[] data = randomData(1, 2000);
+            keys.add(byteList.add(data));
+            written.add(data);
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            byte[] data = written.get(i);
+            long key = keys.get(i);
+            assertEquals(data.length, byteList.dataLength(key));
+            assertArrayEquals(data, byteList.get(key));
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        byteList.forEach((objPos, bucket, pos, len) -> {
+            byte[] expected = written.get(counter.getAndIncrement());
+            assertEquals(0, BitsAndBytes.compare(expected, 0, expected.length, bucket, pos, pos + len));
+            return null;
+        });
+        assertEquals(written.size(), counter.get());
+
+        byteList.free();
+        assertEquals(0, byteList.getAllocatedSize());
+        Assert.assertThrows(IllegalStateException.class, () -> byteList.get(keys.get(0)));
+    }
+
+
+    @Test
+    public void testAppendChunks() throws InterruptedException {
+        ByteList byteList = new ByteList(64 * 1024).withAppendChunks(4 * 1024);
+        ConcurrentHashMap<Long, byte[]> written = new ConcurrentHashMap<>();
+
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    byte[] data = randomData(1, 6000);
+                    written.put(byteList.add(data), data);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w: writers) w.join();
+
+        for (Long key: written.keySet()) {
+            assertArrayEquals(written.get(key), byteList.get(key));
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        byteList.forEach((objPos, bucket, pos, len) -> {
+            byte[] expected = written.get(objPos);
+            assertEquals(0, BitsAndBytes.compare(expected, 0, expected.length, bucket, pos, pos + len));
+            counter.incrementAndGet();
+            return null;
+        });
+        assertEquals(written.size(), counter.get());
+    }
+
+
+    @Test
+    public void testNoStraddle() {
+        int bucketSize = 4 * 1024;
+        ByteList byteList = new ByteList(bucketSize).withNoStraddle(true);
+
+        ArrayList<byte[]> written = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            byte[] data = randomData(1, 1500);
+            long key = byteList.add(data);
+            int headerSize = ByteList.ObjHeader.headerSize(data.length);
+            assertEquals(key / bucketSize, (key + headerSize + data.length - 1) / bucketSize);
+            written.add(data);
+        }
+        Assert.assertTrue(byteList.getPaddingSize() > 0);
+
+        AtomicInteger counter = new AtomicInteger();
+        byteList.forEach((objPos, bucket, pos, len) -> {
+            byte[] expected = written.get(counter.getAndIncrement());
+            assertEquals(bucketSize, bucket.length);
+            assertEquals(0, BitsAndBytes.compare(expected, 0, expected.length, bucket, pos, pos + len));
+            return null;
+        });
+        assertEquals(written.size(), counter.get());
+    }
+
+
+    @Test
+    public void testAddWithWriter() {
+        for (ByteList.Memory memory: ByteList.Memory.values()) {
+            if (memory == ByteList.Memory.MAPPED) continue;
+            ByteList byteList = new ByteList(1024, memory);
+
+            ArrayList<byte[]> written = new ArrayList<>();
+            ArrayList<Long> keys = new ArrayList<>();
+            for (int i = 0; i < 2_000; i++) {
+                byte[] data = randomData(1, 700);
+                long key = byteList.add(data.length, (dest, pos, len) -> System.arraycopy(data, 0, dest, pos, len));
+                keys.add(key);
+                written.add(data);
+            }
+
+            for (int i = 0; i < written.size(); i++) {
+                assertArrayEquals(written.get(i), byteList.get(keys.get(i)));
+            }
+            byteList.free();
+        }
+    }
+
+
+    @Test
+    public void testOversizedAndBucketGrowth() {
+        for (boolean noStraddle: new boolean[] {false, true}) {
+            ByteList byteList = new ByteList(4 * 1024).withBucketGrowth(256).withNoStraddle(noStraddle);
+            assertEquals(0, byteList.getAllocatedSize());
+
+            ArrayList<byte[]> written = new ArrayList<>();
+            ArrayList<Long> keys = new ArrayList<>();
+            for (int i = 0; i < 3_000; i++) {
+                byte[] data = i % 100 == 0 ? randomData(5_000, 20_000) : randomData(1, 300);
+                keys.add(byteList.add(data));
+                written.add(data);
+            }
+            long lastBucketEnd = byteList.bucketStart(byteList.bucketIndex(byteList.getUsedSize()) + 1);
+            if (noStraddle) Assert.assertTrue(byteList.getAllocatedSize() <= lastBucketEnd);
+            else assertEquals(lastBucketEnd, byteList.getAllocatedSize());
+
+            for (int i = 0; i < written.size(); i++) {
+                assertArrayEquals(written.get(i), byteList.get(keys.get(i)));
+            }
+
+            AtomicInteger counter = new AtomicInteger();
+            byteList.forEach((objPos, bucket, pos, len) -> {
+                byte[] expected = written.get(counter.getAndIncrement());
+                assertEquals(0, BitsAndBytes.compare(expected, 0, expected.length, bucket, pos, pos + len));
+                return null;
+            });
+            assertEquals(written.size(), counter.get());
+        }
+    }
+
+
+    @Test
+    public void testOrdinalIndex() {
+        ByteList byteList = new ByteList(4 * 1024).withOrdinalIndex();
+
+        ArrayList<byte[]> written = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            byte[] data = randomData(1, 300);
+            byteList.add(data);
+            written.add(data);
+        }
+        assertEquals(written.size(), byteList.size());
+
+        for (int i = 0; i < written.size(); i += 7) {
+            assertArrayEquals(written.get(i), byteList.get(byteList.keyOf(i)));
+        }
+
+        Iterator<byte[]> reverse = byteList.reverseIterator((objPos, bucket, pos, len) -> Arrays.copyOfRange(bucket, pos, pos + len));
+        for (int i = written.size() - 1; i >= 0; i--) {
+            assertArrayEquals(written.get(i), reverse.next());
+        }
+        Assert.assertFalse(reverse.hasNext());
+
+        Iterator<byte[]> range = byteList.iterator((objPos, bucket, pos, len) -> Arrays.copyOfRange(bucket, pos, pos + len), 1000, 2000);
+        for (int i = 1000; i < 2000; i++) {
+            assertArrayEquals(written.get(i), range.next());
+        }
+        Assert.assertFalse(range.hasNext());
+
+        Assert.assertThrows(IndexOutOfBoundsException.class, () -> byteList.keyOf(written.size()));
+        Assert.assertThrows(IllegalStateException.class, () -> new ByteList().keyOf(0));
+    }
+
+
+    @Test
+    public void testCompression() {
+        BucketCompression compression = new BucketCompression();
+        ByteList byteList = new ByteList(4 * 1024).withCompression(compression);
+
+        ArrayList<byte[]> written = new ArrayList<>();
+        ArrayList<Long> keys = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            byte[] data = ("record number " + i + " of compressible list").getBytes();
+            keys.add(byteList.add(data));
+            written.add(data);
+        }
+
+        int compressed = byteList.compress();
+        Assert.assertTrue(compressed > 0);
+        assertEquals(compressed, compression.getCompressedBuckets());
+        Assert.assertTrue(compression.getRatio() > 2);
+        assertEquals(0, byteList.compress());
+
+        for (int i = 0; i < 100; i++) {
+            byte[] data = ("late record " + i).getBytes();
+            keys.add(byteList.add(data));
+            written.add(data);
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            assertArrayEquals(written.get(i), byteList.get(keys.get(i)));
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        byteList.forEach((objPos, bucket, pos, len) -> {
+            byte[] expected = written.get(counter.getAndIncrement());
+            assertEquals(0, BitsAndBytes.compare(expected, 0, expected.length, bucket, pos, pos + len));
+            return null;
+        });
+        assertEquals(written.size(), counter.get());
+        Assert.assertTrue(compression.getDecodeCount() > 0);
+    }
+
+
+    @Test
+    public void testMappedRestart() throws IOException {
+        File file = File.createTempFile("bytelist", ".bytes");
+        file.deleteOnExit();
+
+        ByteList byteList = new ByteList(16 * 1024, file);
+        ArrayList<byte[]> written = new ArrayList<>();
+        ArrayList<Long> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] data = randomData(1, 500);
+            keys.add(byteList.add(data));
+            written.add(data);
+        }
+        long usedSize = byteList.getUsedSize();
+        byteList.close();
+
+        ByteList reopened = new ByteList(16 * 1024, file);
+        assertEquals(usedSize, reopened.getUsedSize());
+        for (int i = 0; i < written.size(); i++) {
+            assertArrayEquals(written.get(i), reopened.get(keys.get(i)));
+        }
+
+        byte[] data = randomData(1, 500);
+        long key = reopened.add(data);
+        assertEquals(usedSize, key);
+        assertArrayEquals(data, reopened.get(key));
+
+        reopened.free();
+        Assert.assertFalse(file.exists());
+    }
+
 }
@@ -92,6 +92,31 @@ public class CompactMap2Test {
     }
 
 
+    @Test
+    public void testOffHeapCompaction() {
+        TestSerDes serDes = new TestSerDes();
+        CompactMap2<TestObject> compactMap = new CompactMap2<>(
+                4, 64 * 1024, serDes, TestObject::getIdBytes,
+                new BytesHashingStrategy(), ByteList.Memory.OFF_HEAP);
+
+        for (int i = 0; i < 10_000; i++) {
+            compactMap.add(new TestObject(String.valueOf(i), "value" + i));
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            compactMap.add(new TestObject(String.valueOf(i), "updated" + i));
+        }
+
+        compactMap.compact();
+        compactMap.compact();
+
+        for (int i = 0; i < 10_000; i++) {
+            TestObject retrieved = compactMap.get(String.valueOf(i).getBytes());
+            assertNotNull(retrieved);
+            assertEquals(i % 2 == 0 ? "updated" + i : "value" + i, retrieved.value);
+        }
+    }
+
+
     // about 116 seconds on my machine
     @Test
     public void test20x() throws InterruptedException {
@@ -0,0 +1,68 @@
+package mt.fireworks.associations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Lz4Test {
+
+    byte[] roundTrip(byte[] data) {
+        byte[] compressed = new byte[Lz4.maxCompressedLength(data.length) + 3];
+        int len = Lz4.compress(data, 0, data.length, compressed, 3);
+
+        byte[] restored = new byte[data.length];
+        int restoredLen = Lz4.decompress(compressed, 3, len, restored, 0, restored.length);
+        assertEquals(data.length, restoredLen);
+        assertArrayEquals(data, restored);
+        return Arrays.copyOfRange(compressed, 3, 3 + len);
+    }
+
+    @Test
+    public void emptyAndShortData() {
+        roundTrip(new byte[0]);
+        roundTrip(new byte[] {1});
+        roundTrip("twelve bytes".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void randomData() {
+        Random rng = new Random(42);
+        for (int size: new int[] {13, 100, 4096, 70_000}) {
+            byte[] data = new byte[size];
+            rng.nextBytes(data);
+            byte[] compressed = roundTrip(data);
+            Assert.assertTrue(compressed.length <= Lz4.maxCompressedLength(size));
+        }
+    }
+
+    @Test
+    public void repetitiveData() {
+        StringBuilder sb = new StringBuilder();
+        Random rng = new Random(7);
+        while (sb.length() < 100_000) {
+            sb.append("{\"tstamp\":").append(1_600_000_000_000L + rng.nextInt(1000)).append(",\"val\":").append(rng.nextInt(50)).append("}");
+        }
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = roundTrip(data);
+        Assert.assertTrue(compressed.length * 2 < data.length);
+
+        // long runs are overlapping matches
+        byte[] zeros = new byte[50_000];
+        Arrays.fill(zeros, 20_000, 20_010, (byte) 7);
+        Assert.assertTrue(roundTrip(zeros).length < 1000);
+    }
+
+    @Test
+    public void malformedBlock() {
+        byte[] data = new byte[1000];
+        byte[] compressed = new byte[Lz4.maxCompressedLength(data.length)];
+        int len = Lz4.compress(data, 0, data.length, compressed, 0);
+        Assert.assertThrows(RuntimeException.class, () -> Lz4.decompress(compressed, 0, len, new byte[10], 0, 10));
+    }
+}
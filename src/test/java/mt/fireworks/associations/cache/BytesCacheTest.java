@@ -2,9 +2,16 @@ package mt.fireworks.associations.cache;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import org.junit.Assert;
@@ -12,6 +19,8 @@ import org.junit.Test;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import mt.fireworks.associations.BucketPool;
+import mt.fireworks.associations.cache.BytesCacheBuilder.Build;
 
 public class BytesCacheTest {
 
@@ -167,5 +176,831 @@ public class BytesCacheTest {
         List<TstTrx> res_13 = cache.getAsMap(q0, t + 1, t + 4000).get("key");
         assertEquals(3, res_13.size());
     }
-}
 
+    @Test
+    public void offHeapTick() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(0)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .offHeap()
+             .build();
+
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        cache.add(new TstTrx(start - 2 * minute, 1));
+        cache.add(new TstTrx(start - minute, 1));
+        cache.add(new TstTrx(start, 1));
+
+        TstTrx q = new TstTrx(start, 1);
+        assertEquals(3, cache.get("key", q).size());
+
+        cache.tick();
+        assertEquals(2, cache.get("key", q).size());
+
+        cache.tick();
+        cache.tick();
+        assertEquals(0, cache.get("key", q).size());
+    }
+
+
+    @Test
+    public void partitionedIndexTick() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .partitionedIndexes()
+             .build();
+
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        for (int i = 0; i < 10; i++) {
+            cache.add(new TstTrx(start - 2 * minute + i, 1));
+            cache.add(new TstTrx(start - minute + i, 1));
+            cache.add(new TstTrx(start + i, 1));
+            cache.add(new TstTrx(start + minute + i, 2));
+        }
+
+        TstTrx q = new TstTrx(start, 1);
+        List<TstTrx> all = cache.get("key", q);
+        assertEquals(30, all.size());
+        for (int i = 1; i < all.size(); i++) {
+            Assert.assertTrue(all.get(i - 1).tstamp <= all.get(i).tstamp);
+        }
+
+        // only partitions overlapping range are read
+        PartitionedIndex<TstTrx> index = (PartitionedIndex<TstTrx>) cache.indexes[0];
+        assertEquals(4, index.partitions.size());
+        assertEquals(10, cache.get("key", q, start, start + minute).size());
+        assertEquals(20, cache.get("key", q, start - minute, start + minute).size());
+        assertEquals(10, cache.getLast("key", q, 10, null, null).size());
+
+        cache.tick();
+        assertEquals(3, index.partitions.size());
+        assertEquals(10, cache.metrics.lastWindowSize.get());
+        assertEquals(20, cache.get("key", q).size());
+        assertEquals(10, cache.get("key", new TstTrx(start, 2)).size());
+
+        cache.tick();
+        cache.tick();
+        assertEquals(0, cache.get("key", q).size());
+        assertEquals(1, index.partitions.size());
+        assertEquals(3, index.metrics.droppedPartitions.get());
+    }
+
+
+    @Test
+    public void recordEnvelopeTick() {
+        Function<TstTrx, byte[]> evenKeyer = t -> t.val % 2 == 0 ? keyer.apply(t) : null;
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .associate("even", evenKeyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(0)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .recordEnvelope()
+             .build();
+
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        for (int i = 0; i < 10; i++) {
+            cache.add(new TstTrx(start - 2 * minute + i, i));
+            cache.add(new TstTrx(start - minute + i, i));
+            cache.add(new TstTrx(start + i, i));
+        }
+
+        // records are read without envelope
+        List<TstTrx> res = cache.get("key", new TstTrx(start, 4));
+        assertEquals(3, res.size());
+        assertEquals(new TstTrx(start - 2 * minute + 4, 4), res.get(0));
+        assertEquals(3, cache.get("even", new TstTrx(start, 4)).size());
+        Assert.assertNull(cache.get("even", new TstTrx(start, 5)));
+        assertEquals(new TstTrx(start + 9, 9), cache.latest(start, 1).get(0));
+        int count = 0;
+        for (java.util.Iterator<TstTrx> iter = cache.values(); iter.hasNext(); iter.next()) count++;
+        assertEquals(30, count);
+        Assert.assertTrue(cache.storage.metric.envelopeBytes.get() > 0);
+
+        // tick cleans indexes without unmarshalling
+        MetricSerDes2<TstTrx> serdesMetric = (MetricSerDes2<TstTrx>) cache.serdes2;
+        long unmarshalled = serdesMetric.inPlaceUnmarshallCount.get();
+        cache.tick();
+        assertEquals(unmarshalled, serdesMetric.inPlaceUnmarshallCount.get());
+        assertEquals(10, cache.metrics.lastWindowSize.get());
+        assertEquals(2, cache.get("key", new TstTrx(start, 4)).size());
+        assertEquals(2, cache.get("even", new TstTrx(start, 4)).size());
+
+        cache.tick();
+        cache.tick();
+        assertEquals(0, cache.get("key", new TstTrx(start, 4)).size());
+        assertEquals(0, cache.indexes[0].size());
+        assertEquals(0, cache.indexes[1].size());
+    }
+
+
+    @Test
+    public void backgroundEviction() throws InterruptedException {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(1)
+             .futureWindowCount(0)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .backgroundEviction(50, TimeUnit.MICROSECONDS)
+             .build();
+
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        for (int i = 0; i < 50_000; i++) {
+            cache.add(new TstTrx(start - minute + i % 1000, i % 5000));
+        }
+        cache.add(new TstTrx(start, 1));
+        assertEquals(11, cache.get("key", new TstTrx(start, 1)).size());
+
+        // removed window is invisible at once, while cleanup runs in background
+        cache.tick();
+        assertEquals(0, cache.get("key", new TstTrx(start, 2)).size());
+        cache.add(new TstTrx(start + minute, 1));
+        assertEquals(2, cache.get("key", new TstTrx(start, 1)).size());
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (cache.metrics.evictionPending.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.metrics.evictionPending.get());
+        assertEquals(0, cache.metrics.evictionRecordsLeft.get());
+        assertEquals(50_000, cache.metrics.lastWindowSize.get());
+        Assert.assertTrue(cache.metrics.evictionSlices.get() > 0);
+        Assert.assertTrue(cache.metrics.text(true).contains("slices"));
+        assertEquals(1, cache.indexes[0].size());
+        assertEquals(2, cache.get("key", new TstTrx(start, 1)).size());
+
+        cache.tick();
+        cache.close();
+        assertEquals(0, cache.metrics.evictionPending.get());
+        assertEquals(1, cache.indexes[0].size());
+    }
+
+
+    @Test
+    public void tickScheduler() throws InterruptedException {
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        long start = TimeKeys.normalizieTimestamp(System.currentTimeMillis());
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(1)
+             .futureWindowCount(0)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .startTimeMillis(start)
+             .build();
+
+        AtomicLong clock = new AtomicLong(start + 10_000);
+        TickScheduler scheduler = new TickScheduler(cache, 1000, clock::get);
+        assertEquals(1000, scheduler.runDue());
+
+        // scheduler wakes at boundary, if it is within lag
+        clock.set(start + minute - 500);
+        assertEquals(500, scheduler.runDue());
+        assertEquals(start, cache.startTimeMillis());
+
+        // without future window, writes ahead of tick are dropped
+        Assert.assertFalse(cache.add(new TstTrx(start + minute, 1)));
+        Assert.assertFalse(cache.add(new TstTrx(start - 2 * minute, 1)));
+        assertEquals(1, cache.metrics.droppedAhead.get());
+        assertEquals(1, cache.metrics.droppedBehind.get());
+
+        clock.set(start + minute + 5);
+        scheduler.runDue();
+        assertEquals(start + minute, cache.startTimeMillis());
+        assertEquals(5, cache.metrics.lastTickLateness.get());
+        assertEquals(0, cache.metrics.lateTicks.get());
+
+        // missed ticks are caught up
+        clock.set(start + 4 * minute + 2_000);
+        scheduler.runDue();
+        assertEquals(start + 4 * minute, cache.startTimeMillis());
+        assertEquals(4, cache.metrics.scheduledTicks.get());
+        assertEquals(3, cache.metrics.lateTicks.get());
+        assertEquals(2 * minute + 2_000, cache.metrics.maxTickLateness.get());
+        Assert.assertTrue(cache.add(new TstTrx(clock.get(), 1)));
+
+        // real clock, one second windows
+        BytesCache<TstTrx> ticked = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .windowTimespan(1, TimeUnit.SECONDS)
+             .autoTick(20, TimeUnit.MILLISECONDS)
+             .build();
+        long first = ticked.startTimeMillis();
+        Thread.sleep(1500);
+        Assert.assertTrue(ticked.startTimeMillis() > first);
+        Assert.assertTrue(ticked.metrics.scheduledTicks.get() > 0);
+        ticked.close();
+    }
+
+
+    @Test
+    public void sortedPostingsRange() {
+        BytesCacheFactory<TstTrx> factory = new BytesCacheFactory<>();
+        factory.setSerdes(serdes2);
+        factory.addKeyer("key", keyer);
+        factory.setWindowTimespanMs(TimeUnit.MINUTES.toMillis(1));
+        factory.setKeyCapacity(40);
+        BytesCache<TstTrx> cache = factory.getInstance();
+
+        // arrive out of order, one per second
+        long start = cache.startTimeMillis();
+        java.util.ArrayList<Integer> seconds = new java.util.ArrayList<>();
+        for (int i = 0; i < 50; i++) seconds.add(i);
+        java.util.Collections.shuffle(seconds, new java.util.Random(7));
+        for (int sec: seconds) {
+            cache.add(new TstTrx(start + sec * 1000 + 500, 1));
+        }
+
+        TstTrx q = new TstTrx(start, 1);
+        Postings.Snapshot keys = cache.indexes[0].get(q);
+        assertEquals(40, keys.size());
+        for (int i = 1; i < keys.size(); i++) {
+            Assert.assertTrue(keys.get(i - 1) < keys.get(i));
+        }
+
+        // capacity drops oldest
+        List<TstTrx> all = cache.get("key", q);
+        assertEquals(40, all.size());
+        assertEquals(start + 10 * 1000 + 500, all.get(0).tstamp);
+
+        List<TstTrx> range = cache.get("key", q, start + 20_000, start + 30_500);
+        assertEquals(10, range.size());
+        assertEquals(start + 20_500, range.get(0).tstamp);
+        assertEquals(start + 29_500, range.get(9).tstamp);
+
+        List<TstTrx> last = cache.getLast("key", q, 3, start + 20_000, start + 30_000);
+        assertEquals(3, last.size());
+        assertEquals(start + 27_500, last.get(0).tstamp);
+        assertEquals(start + 29_500, last.get(2).tstamp);
+
+        assertEquals(0, cache.get("key", q, start + 60_000, null).size());
+        assertEquals(0, cache.get("key", q, null, start).size());
+    }
+
+
+    @Test
+    public void concurrentIndexReads() throws InterruptedException {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .build();
+        long now = cache.startTimeMillis();
+        int count = 50_000;
+
+        // readers look up keys already written while writer grows index shards
+        AtomicLong written = new AtomicLong(-1);
+        AtomicLong missing = new AtomicLong();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                java.util.Random rng = new java.util.Random();
+                while (written.get() < count - 1) {
+                    long w = written.get();
+                    if (w < 0) continue;
+                    int val = rng.nextInt((int) w + 1);
+                    if (cache.get("key", new TstTrx(now, val)).isEmpty()) missing.incrementAndGet();
+                }
+            });
+            readers[r].start();
+        }
+
+        for (int i = 0; i < count; i++) {
+            cache.add(new TstTrx(now, i));
+            written.set(i);
+        }
+        for (Thread t: readers) t.join();
+
+        assertEquals(0, missing.get());
+        assertEquals(count, cache.indexes[0].size());
+    }
+
+
+    @Test
+    public void offHeapIndex() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("heap", keyer)
+             .associateOffHeap("key", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .build();
+        Index<TstTrx> index = cache.indexes[0] instanceof OffHeapIndex ? cache.indexes[0] : cache.indexes[1];
+        Index<TstTrx> heapIndex = cache.indexes[0] instanceof OffHeapIndex ? cache.indexes[1] : cache.indexes[0];
+        Assert.assertTrue(index instanceof OffHeapIndex);
+
+        // shard tables, arenas and posting blocks grow
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        java.util.Random rng = new java.util.Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            long tstamp = start - 2 * minute + rng.nextInt((int) (3 * minute));
+            cache.add(new TstTrx(tstamp, rng.nextInt(2000)));
+        }
+        long keyCount = heapIndex.size();
+        Assert.assertTrue(keyCount > 1900);
+        assertEquals(keyCount, index.size());
+        Assert.assertTrue(index.offHeapBytes() > 0);
+
+        for (int val = 0; val < 2000; val += 7) {
+            TstTrx q = new TstTrx(start, val);
+            assertEquals(cache.get("heap", q), cache.get("key", q));
+            assertEquals(cache.get("heap", q, start - minute, start), cache.get("key", q, start - minute, start));
+            assertEquals(cache.getLast("heap", q, 3, null, null), cache.getLast("key", q, 3, null, null));
+        }
+
+        // evicted keys are removed by compaction
+        cache.tick();
+        cache.tick();
+        cache.tick();
+        for (int val = 0; val < 2000; val += 7) {
+            assertEquals(0, cache.get("key", new TstTrx(start, val)).size());
+        }
+        assertEquals(0, index.size());
+        assertEquals(keyCount, index.metrics.removeEmptyKeyCout.get());
+
+        // key capacity and removal within shard
+        OffHeapShard shard = new OffHeapShard(new AtomicLong());
+        byte[] k = {1, 2, 3};
+        for (int i = 99; i >= 0; i -= 2) shard.add(k, i, -1);
+        for (int i = 0; i < 100; i += 2) shard.add(k, i, 60);
+        Postings.Snapshot keys = shard.get(k);
+        assertEquals(60, keys.size());
+        assertEquals(40, keys.get(0));
+        assertEquals(99, keys.get(59));
+
+        shard.removeBelow(k, 95);
+        assertEquals(5, shard.get(k).size());
+        assertEquals(0, shard.compact());
+        shard.removeAll(k, org.eclipse.collections.impl.factory.primitive.LongSets.mutable.of(95, 96, 97, 98, 99));
+        assertEquals(1, shard.compact());
+        assertEquals(0, shard.size());
+        Assert.assertNull(shard.get(k));
+    }
+
+
+    @Test
+    public void keyCapacityPerIndex() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("all", keyer)
+             .associate("last", keyer, 5)
+             .associateOffHeap("offLast", keyer, 5)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .build();
+
+        long start = cache.startTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            cache.add(new TstTrx(start + 1000 * i, 7));
+        }
+        // late value is older than kept ones, and is dropped
+        cache.add(new TstTrx(start - 1000, 7));
+
+        TstTrx q = new TstTrx(start, 7);
+        List<TstTrx> all = cache.get("all", q);
+        assertEquals(21, all.size());
+        List<TstTrx> newest = all.subList(16, 21);
+        assertEquals(newest, cache.get("last", q));
+        assertEquals(newest, cache.get("offLast", q));
+        assertEquals(newest.subList(2, 5), cache.getLast("last", q, 3, null, null));
+        assertEquals(newest.subList(2, 5), cache.getLast("offLast", q, 3, null, null));
+        assertEquals(newest, cache.getLast("last", q, 0, null, null));
+
+        // ring of posting block wraps many times, without growing
+        OffHeapShard shard = new OffHeapShard(new AtomicLong());
+        byte[] k = {1, 2, 3};
+        for (int i = 0; i < 200; i++) shard.add(k, i, 100);
+        int slabUsed = shard.slabUsed;
+        for (int i = 200; i < 10_000; i++) shard.add(k, i, 100);
+        Postings.Snapshot keys = shard.get(k);
+        assertEquals(100, keys.size());
+        for (int i = 0; i < 100; i++) assertEquals(9900 + i, keys.get(i));
+        shard.add(k, 9950, 100);
+        assertEquals(9901, shard.get(k).get(0));
+        assertEquals(9950, shard.get(k).get(50));
+        assertEquals(slabUsed, shard.slabUsed);
+    }
+
+
+    @Test
+    public void millisecondKeys() {
+        AtomicLong unmarshalled = new AtomicLong();
+        CacheSerDes<TstTrx> counting = new CacheSerDes<TstTrx>() {
+            public byte[] marshall(TstTrx t) {
+                return serdes2.marshall(t);
+            }
+
+            public TstTrx unmarshall(byte[] data) {
+                unmarshalled.incrementAndGet();
+                return serdes2.unmarshall(data);
+            }
+
+            public long timestampOfT(TstTrx val) {
+                return val.tstamp;
+            }
+        };
+
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(counting)
+             .associate("key", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .millisecondKeys(365, TimeUnit.DAYS)
+             .build();
+        Assert.assertTrue(cache.timeKeys.isExact());
+        assertEquals(28, cache.timeKeys.indexBits);
+
+        long start = cache.startTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            cache.add(new TstTrx(start + 100 * i, 7));
+        }
+
+        // first record at origin is stored under non zero key
+        long origin = cache.storage.origin;
+        Assert.assertTrue(cache.add(new TstTrx(origin, 8)));
+        assertEquals(1, cache.get("key", new TstTrx(origin, 8)).size());
+
+        // only records within range are read
+        TstTrx q = new TstTrx(start, 7);
+        unmarshalled.set(0);
+        List<TstTrx> range = cache.get("key", q, start + 250, start + 1250);
+        assertEquals(10, range.size());
+        assertEquals(start + 300, range.get(0).tstamp);
+        assertEquals(start + 1200, range.get(9).tstamp);
+        assertEquals(10, unmarshalled.get());
+
+        List<TstTrx> last = cache.getLast("key", q, 2, start + 250, start + 1250);
+        assertEquals(range.subList(8, 10), last);
+
+        // tick removes keys of evicted window
+        cache.tick();
+        cache.tick();
+        cache.tick();
+        assertEquals(0, cache.get("key", q).size());
+    }
+
+
+    @Test
+    public void addAllBatch() {
+        BytesCache<TstTrx> single = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .associateOffHeap("off", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .build();
+        BytesCache<TstTrx> batched = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .associateOffHeap("off", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .recordEnvelope()
+             .startTimeMillis(single.startTimeMillis())
+             .build();
+
+        // batches span all windows, and some values fall outside of them
+        long start = single.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        java.util.Random rng = new java.util.Random(17);
+        for (int b = 0; b < 10; b++) {
+            java.util.ArrayList<TstTrx> batch = new java.util.ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                long tstamp = start - 3 * minute + rng.nextInt((int) (6 * minute));
+                batch.add(new TstTrx(tstamp, rng.nextInt(300)));
+            }
+
+            boolean[] added = batched.addAll(batch);
+            assertEquals(batch.size(), added.length);
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(single.add(batch.get(i)), added[i]);
+            }
+        }
+        assertEquals(5000, batched.metrics.addCount.get());
+        assertEquals(10, batched.metrics.batchCount.get());
+        Assert.assertTrue(batched.metrics.droppedAhead.get() > 0);
+        Assert.assertTrue(batched.metrics.droppedBehind.get() > 0);
+
+        // dropped records are not counted as index puts
+        for (int idx = 0; idx < 2; idx++) {
+            assertEquals(single.indexes[idx].metrics.putCount.get(), batched.indexes[idx].metrics.putCount.get());
+        }
+
+        for (int val = 0; val < 300; val++) {
+            TstTrx q = new TstTrx(start, val);
+            assertEquals(single.get("key", q), batched.get("key", q));
+            assertEquals(single.get("key", q), batched.get("off", q));
+            assertEquals(single.getLast("key", q, 2, start - minute, start), batched.getLast("key", q, 2, start - minute, start));
+        }
+
+        // envelope cleans indexes of batched values on tick
+        single.tick();
+        batched.tick();
+        for (int val = 0; val < 300; val++) {
+            TstTrx q = new TstTrx(start, val);
+            assertEquals(single.get("key", q), batched.get("key", q));
+        }
+    }
+
+
+    @Test
+    public void inlineSingleKeys() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(1)
+             .futureWindowCount(0)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .build();
+        long start = cache.startTimeMillis();
+        for (int val = 0; val < 100; val++) {
+            cache.add(new TstTrx(start - 1000 + val, val));
+        }
+        for (int val = 0; val < 10; val++) {
+            cache.add(new TstTrx(start + val, val));
+        }
+
+        Index<TstTrx> index = cache.indexes[0];
+        assertEquals(90, index.inlineKeys());
+        assertEquals(10, index.promotedKeys());
+        assertEquals(10, index.metrics.promotions.get());
+        assertEquals(2, cache.get("key", new TstTrx(start, 5)).size());
+        assertEquals(1, cache.get("key", new TstTrx(start, 50)).size());
+        assertEquals(1, cache.get("key", new TstTrx(start, 50), start - 1000, start).size());
+        Assert.assertTrue(index.metrics.text(false).contains("inline keys: 90"));
+
+        // inline keys are removed with their storage key
+        cache.tick();
+        assertEquals(0, index.inlineKeys());
+        assertEquals(10, index.promotedKeys());
+        assertEquals(1, cache.get("key", new TstTrx(start, 5)).size());
+        cache.tick();
+        assertEquals(0, index.size());
+    }
+
+
+    @Test
+    public void bucketPoolTick() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(0)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .allocationSize(64 * 1024)
+             .bucketPool(1024 * 1024)
+             .build();
+
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        cache.add(new TstTrx(start - 2 * minute, 1));
+        cache.add(new TstTrx(start - minute, 1));
+        cache.add(new TstTrx(start, 1));
+
+        BucketPool pool = cache.storage.bucketPool;
+        assertEquals(0, pool.getHits());
+        assertEquals(3, pool.getMisses());
+
+        cache.tick();
+        assertEquals(64 * 1024, pool.getPooledBytes());
+
+        cache.add(new TstTrx(start + minute, 2));
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getPooledBytes());
+
+        TstTrx q = new TstTrx(start, 1);
+        assertEquals(2, cache.get("key", q).size());
+        assertEquals(1, cache.get("key", new TstTrx(start + minute, 2)).size());
+    }
+
+    @Test
+    public void tickDuringValuesIteration() {
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        for (int variant = 0; variant < 2; variant++) {
+            Build<TstTrx> builder = BytesCache.newInstance(TstTrx.class)
+                 .withSerdes(serdes2)
+                 .associate("key", keyer)
+                 .historyWindowsCount(2)
+                 .futureWindowCount(0)
+                 .windowTimespan(1, TimeUnit.MINUTES)
+                 .allocationSize(64 * 1024);
+            BytesCache<TstTrx> cache = variant == 0 ? builder.offHeap().build() : builder.bucketPool(1024 * 1024).build();
+
+            long start = cache.startTimeMillis();
+            for (int w = 0; w < 3; w++) {
+                for (int i = 0; i < 10; i++) {
+                    cache.add(new TstTrx(start - (2 - w) * minute + i, i));
+                }
+            }
+
+            // oldest window is evicted and freed while it is iterated
+            Iterator<TstTrx> values = cache.values();
+            assertEquals(start - 2 * minute, values.next().tstamp);
+            cache.tick();
+
+            ArrayList<TstTrx> rest = new ArrayList<>();
+            values.forEachRemaining(rest::add);
+            assertEquals(20, rest.size());
+            for (TstTrx trx: rest) {
+                Assert.assertTrue(trx.tstamp >= start - minute);
+            }
+            cache.close();
+        }
+    }
+
+    @Test
+    public void inPlaceMarshalling() {
+        CacheSerDes<TstTrx> inPlaceSerdes = new CacheSerDes<TstTrx>() {
+            public byte[] marshall(TstTrx t) {
+                throw new AssertionError("in place marshalling expected");
+            }
+
+            public int sizeOf(TstTrx t) {
+                return 12;
+            }
+
+            public void marshallInto(TstTrx t, byte[] dest, int offset) {
+                ByteBuffer bb = ByteBuffer.wrap(dest, offset, 12);
+                bb.putLong(t.tstamp);
+                bb.putInt(t.val);
+            }
+
+            public TstTrx unmarshall(byte[] data) {
+                return serdes2.unmarshall(data);
+            }
+
+            public long timestampOfT(TstTrx val) {
+                return val.tstamp;
+            }
+        };
+
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(inPlaceSerdes)
+             .associate("key", keyer)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .allocationSize(1000)
+             .build();
+
+        long start = cache.startTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(true, cache.add(new TstTrx(start + i, i % 10)));
+        }
+
+        List<TstTrx> res = cache.get("key", new TstTrx(start, 3));
+        assertEquals(100, res.size());
+        for (TstTrx t: res) {
+            assertEquals(3, t.val);
+            assertEquals(3, (t.tstamp - start) % 10);
+        }
+    }
+
+
+    @Test
+    public void latestInWindow() {
+        for (boolean ordinalIndex: new boolean[] {true, false}) {
+            BytesCacheBuilder.Build<TstTrx> builder = BytesCache.newInstance(TstTrx.class)
+                 .withSerdes(serdes2)
+                 .associate("key", keyer)
+                 .windowTimespan(1, TimeUnit.MINUTES);
+            if (ordinalIndex) builder.ordinalIndex();
+            BytesCache<TstTrx> cache = builder.build();
+
+            long start = cache.startTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                cache.add(new TstTrx(start + i, i));
+            }
+
+            List<TstTrx> latest = cache.latest(start, 3);
+            assertEquals(3, latest.size());
+            assertEquals(99, latest.get(0).val);
+            assertEquals(98, latest.get(1).val);
+            assertEquals(97, latest.get(2).val);
+            assertEquals(100, cache.latest(start, 1000).size());
+        }
+    }
+
+
+    @Test
+    public void compressHistory() {
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .historyWindowsCount(2)
+             .futureWindowCount(1)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .allocationSize(1024)
+             .compressHistory()
+             .build();
+
+        long start = cache.startTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        for (int i = 0; i < 1000; i++) {
+            cache.add(new TstTrx(start + i, i % 10));
+        }
+
+        cache.tick();
+        assertEquals(true, cache.storage.compression.getCompressedBuckets() > 0);
+        assertEquals(100, cache.get("key", new TstTrx(start, 3)).size());
+
+        cache.add(new TstTrx(start + minute, 3));
+        assertEquals(101, cache.get("key", new TstTrx(start, 3)).size());
+        assertEquals(true, cache.storage.getMetric().text(false).contains("compression:"));
+    }
+
+
+    @Test
+    public void restoreFromStorageDirectory() throws IOException {
+        File dir = Files.createTempDirectory("bytescache").toFile();
+        long now = System.currentTimeMillis();
+        long minute = TimeUnit.MINUTES.toMillis(1);
+
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .storageDirectory(dir)
+             .startTimeMillis(now)
+             .build();
+
+        cache.add(new TstTrx(now - minute, 1));
+        cache.add(new TstTrx(now, 1));
+        cache.add(new TstTrx(now, 2));
+        cache.close();
+
+        // restart half a window later
+        BytesCache<TstTrx> restored = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .storageDirectory(dir)
+             .startTimeMillis(now + minute / 2)
+             .build();
+
+        assertEquals(2, restored.get("key", new TstTrx(now, 1)).size());
+        assertEquals(1, restored.get("key", new TstTrx(now, 2)).size());
+
+        File oldest = new File(dir, Storage.windowFileName(restored.storage.windows()[0].startTstamp));
+        Assert.assertTrue(oldest.exists());
+        restored.tick();
+        Assert.assertFalse(oldest.exists());
+        restored.close();
+
+        for (File f: dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void restoreWithRecordEnvelope() throws IOException {
+        File dir = Files.createTempDirectory("bytescache").toFile();
+        long now = System.currentTimeMillis();
+
+        BytesCache<TstTrx> cache = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .storageDirectory(dir)
+             .startTimeMillis(now)
+             .recordEnvelope()
+             .build();
+        cache.add(new TstTrx(now, 1));
+        cache.add(new TstTrx(now, 1));
+        cache.add(new TstTrx(now, 2));
+        cache.close();
+
+        BytesCache<TstTrx> restored = BytesCache.newInstance(TstTrx.class)
+             .withSerdes(serdes2)
+             .associate("key", keyer)
+             .windowTimespan(1, TimeUnit.MINUTES)
+             .storageDirectory(dir)
+             .startTimeMillis(now)
+             .recordEnvelope()
+             .build();
+
+        MetricSerDes2<TstTrx> serdesMetric = (MetricSerDes2<TstTrx>) restored.serdes2;
+        assertEquals(0, serdesMetric.inPlaceUnmarshallCount.get());
+        assertEquals(2, restored.get("key", new TstTrx(now, 1)).size());
+        assertEquals(new TstTrx(now, 2), restored.get("key", new TstTrx(now, 2)).get(0));
+        restored.close();
+
+        for (File f: dir.listFiles()) f.delete();
+        dir.delete();
+    }
+}
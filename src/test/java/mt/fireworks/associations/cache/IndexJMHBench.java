@@ -0,0 +1,165 @@
+package mt.fireworks.associations.cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.collections.api.map.MutableMap;
+import org.eclipse.collections.api.set.primitive.LongSet;
+import org.eclipse.collections.impl.factory.primitive.LongSets;
+import org.eclipse.collections.impl.map.strategy.mutable.UnifiedMapWithHashingStrategy;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+
+/**
+ * Index reads with 8, 16 and 32 reader threads, while one writer thread
+ * keeps adding and removing keys. Shards of synchronized maps, as index used
+ * before, are compared to {@link IndexShard} with optimistic reads, where
+ * keys with single storage key are stored inline.
+ *
+ * Run main to get results. Both variants have 128 shards, as default
+ * {@code indexMapCount}, prefilled with 100k keys which readers look up.
+ * Writer cycles another 100k keys in and out of shards.
+ */
+public class IndexJMHBench {
+
+    static final int[] THREAD_COUNTS = {8, 16, 32};
+    static final int SHARDS = 128;
+    static final int KEY_COUNT = 100_000;
+
+
+    static byte[][] randomKeys(int count) {
+        byte[][] keys = new byte[count][];
+        ThreadLocalRandom rng = ThreadLocalRandom.current();
+        for (int i = 0; i < count; i++) {
+            keys[i] = new byte[rng.nextInt(8, 32)];
+            rng.nextBytes(keys[i]);
+        }
+        return keys;
+    }
+
+    static int shard(byte[] key) {
+        return Math.abs( Index.bytesHashing.computeHashCode(key) ) % SHARDS;
+    }
+
+
+    @State(Scope.Benchmark)
+    public static abstract class IndexState {
+        byte[][] keys;
+        byte[][] churn;
+        Thread writer;
+        volatile boolean running;
+
+        abstract Object get(byte[] key);
+        abstract void add(byte[] key, long storageKey);
+
+        /** remove churn keys */
+        abstract void removeChurn();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            keys = randomKeys(KEY_COUNT);
+            churn = randomKeys(KEY_COUNT);
+            for (byte[] key: keys) add(key, 1);
+
+            running = true;
+            writer = new Thread(() -> {
+                while (running) {
+                    for (byte[] key: churn) add(key, 2);
+                    removeChurn();
+                }
+            });
+            writer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            running = false;
+            writer.join();
+        }
+    }
+
+
+    public static class SynchronizedState extends IndexState {
+        @SuppressWarnings("unchecked")
+        final MutableMap<byte[], Postings>[] shards = new MutableMap[SHARDS];
+        {
+            for (int i = 0; i < SHARDS; i++) {
+                shards[i] = new UnifiedMapWithHashingStrategy<byte[], Postings>(Index.bytesHashing).asSynchronized();
+            }
+        }
+
+        Object get(byte[] key) {
+            return shards[shard(key)].get(key);
+        }
+
+        void add(byte[] key, long storageKey) {
+            shards[shard(key)].getIfAbsentPut(key, Postings::new).add(storageKey, -1);
+        }
+
+        void removeChurn() {
+            for (MutableMap<byte[], Postings> shard: shards) shard.removeIf((k, p) -> p.snapshot().get(0) == 2);
+        }
+    }
+
+
+    public static class StampedState extends IndexState {
+        final AtomicLong retries = new AtomicLong();
+        final LongSet churnKeys = LongSets.immutable.of(2);
+
+        final IndexShard[] shards = new IndexShard[SHARDS];
+        {
+            for (int i = 0; i < SHARDS; i++) {
+                shards[i] = new IndexShard(retries, new AtomicLong(), TimeKeys.INDEX_BITS);
+            }
+        }
+
+        Object get(byte[] key) {
+            return shards[shard(key)].snapshot(key);
+        }
+
+        void add(byte[] key, long storageKey) {
+            shards[shard(key)].add(key, storageKey, -1);
+        }
+
+        void removeChurn() {
+            for (byte[] key: churn) shards[shard(key)].removeAll(key, churnKeys);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        for (int threads: THREAD_COUNTS) {
+            Options opt = new OptionsBuilder()
+                    .include("mt\\.fireworks\\.associations\\.cache\\.IndexJMHBench\\..*")
+                    .forks(1)
+                    .threads(threads)
+                    .warmupIterations(1)
+                    .warmupTime(TimeValue.seconds(3))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(3))
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .mode(Mode.Throughput)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+
+
+    @Benchmark
+    public Object readSynchronized(SynchronizedState state) {
+        byte[] key = state.keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+        return state.get(key);
+    }
+
+
+    @Benchmark
+    public Object readStamped(StampedState state) {
+        byte[] key = state.keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+        return state.get(key);
+    }
+
+}
@@ -0,0 +1,177 @@
+package mt.fireworks.associations.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.collections.impl.factory.primitive.LongSets;
+import org.junit.Test;
+
+public class PostingsTest {
+
+    @Test
+    public void orderedInsertAndSnapshots() {
+        Postings postings = new Postings();
+        ArrayList<Long> expected = new ArrayList<>();
+        Random rng = new Random(3);
+
+        for (int i = 0; i < 1000; i++) {
+            Postings.Snapshot before = postings.snapshot();
+            String beforeStr = before.toString();
+
+            long key = i % 10 == 0 ? rng.nextInt(10 * i + 1) : 10l * i;
+            postings.add(key, -1);
+            expected.add(key);
+
+            // older snapshot is not changed by write
+            assertEquals(beforeStr, before.toString());
+        }
+
+        Collections.sort(expected);
+        Postings.Snapshot s = postings.snapshot();
+        assertEquals(expected.size(), s.size());
+        int idx = 0;
+        for (long key: expected) {
+            assertEquals(key, s.get(idx++));
+        }
+    }
+
+    @Test
+    public void capacityAndRemoval() {
+        Postings postings = new Postings();
+        for (int i = 0; i < 500; i++) {
+            postings.add(i, 100);
+        }
+        Postings.Snapshot s = postings.snapshot();
+        assertEquals(100, s.size());
+        assertEquals(400, s.get(0));
+        assertEquals(499, s.get(99));
+
+        postings.removeBelow(450);
+        Postings.Snapshot trimmed = postings.snapshot();
+        assertEquals(50, trimmed.size());
+        assertEquals(450, trimmed.get(0));
+        assertEquals(100, s.size());
+        assertEquals(400, s.get(0));
+
+        postings.removeAll(LongSets.mutable.of(450, 460, 499));
+        trimmed = postings.snapshot();
+        assertEquals(47, trimmed.size());
+        assertEquals(451, trimmed.get(0));
+        assertEquals(498, trimmed.get(46));
+
+        postings.add(1000, 100);
+        assertEquals(1000, postings.snapshot().get(47));
+
+        postings.removeBelow(2000);
+        assertTrue(postings.isEmpty());
+    }
+
+    @Test
+    public void readersDuringWrites() throws Exception {
+        Postings postings = new Postings();
+        int count = 200_000;
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < count; i++) postings.add(i, 1000);
+        });
+        writer.start();
+
+        boolean done = false;
+        while (!done) {
+            done = !writer.isAlive();
+            Postings.Snapshot s = postings.snapshot();
+            assertTrue(s.size() <= 1000);
+            for (int i = 1; i < s.size(); i++) {
+                assertEquals(s.get(i - 1) + 1, s.get(i));
+            }
+        }
+        writer.join();
+        assertEquals(count - 1, postings.snapshot().get(999));
+    }
+
+    @Test
+    public void packedChunks() {
+        Postings postings = new Postings();
+        ArrayList<Long> expected = new ArrayList<>();
+        Random rng = new Random(5);
+
+        // keys of one association, few per second, stored close to each other
+        long sec = 1000;
+        long index = 1_000_000;
+        for (int i = 0; i < 5000; i++) {
+            sec += rng.nextInt(3);
+            index += rng.nextInt(200);
+            long key = sec << TimeKeys.INDEX_BITS | index;
+            if (i % 100 == 0) key -= 40l << TimeKeys.INDEX_BITS;
+            postings.add(key, -1);
+            expected.add(key);
+        }
+        Collections.sort(expected);
+
+        Postings.Snapshot s = postings.snapshot();
+        assertTrue(s.isPacked(0));
+        assertTrue(s.memory() * 2 < 8l * s.size());
+        assertEquals(expected.size(), s.size());
+
+        // reverse reads, as for last entries
+        Postings.Cursor cursor = s.cursor();
+        for (int idx = s.size() - 1; idx >= 0; idx--) {
+            assertEquals(expected.get(idx).longValue(), cursor.get(idx));
+        }
+
+        // time range seeks
+        for (int i = 0; i < 100; i++) {
+            long key = expected.get(rng.nextInt(expected.size()));
+            int lower = expected.indexOf(key);
+            int upper = expected.lastIndexOf(key) + 1;
+            assertEquals(lower, s.lowerBound(key));
+            assertEquals(upper, s.upperBound(key));
+        }
+        assertEquals(0, s.lowerBound(0));
+        assertEquals(s.size(), s.upperBound(Long.MAX_VALUE));
+
+        // out of order inserts into packed chunks, old snapshot unchanged
+        String before = s.toString();
+        long early = expected.get(10) + 1;
+        postings.add(early, -1);
+        expected.add(early);
+        Collections.sort(expected);
+        assertEquals(before, s.toString());
+        assertEquals(expected.toString(), postings.snapshot().toString());
+
+        // removal keeps keys packed
+        postings.removeBelow(expected.get(1000));
+        postings.removeAll(LongSets.mutable.of(expected.get(2000), expected.get(3000)));
+        Postings.Snapshot trimmed = postings.snapshot();
+        assertEquals(expected.size() - 1002, trimmed.size());
+        assertEquals(expected.get(1000).longValue(), trimmed.get(0));
+        assertTrue(trimmed.isPacked(0));
+    }
+
+
+    @Test
+    public void addToRemovedPostings() {
+        IndexShard shard = new IndexShard(new AtomicLong(), new AtomicLong(), TimeKeys.INDEX_BITS);
+        byte[] key = "key".getBytes();
+        shard.add(key, 10, 0);
+        shard.add(key, 20, 0);
+        shard.removeBelow(key, 30);
+
+        // writer got postings, then eviction removed them as empty
+        Postings stale = shard.get(key);
+        shard.removeIf((k, p) -> p.isEmpty());
+        assertNull(shard.get(key));
+
+        // add to removed postings is refused, and shard add stores key anew
+        assertFalse(stale.add(40, 0));
+        shard.add(key, 40, 0);
+        assertEquals("[40]", shard.snapshot(key).toString());
+    }
+}
@@ -8,6 +8,8 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 import org.junit.Assert;
@@ -15,6 +17,7 @@ import org.junit.Test;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import mt.fireworks.associations.ByteList;
 import mt.fireworks.associations.ByteList.Peeker;
 import mt.fireworks.associations.cache.*;
 
@@ -109,11 +112,109 @@ public class StorageTest {
     @Test
     public void windowAllocationTest() {
         Storage storage = new Storage(new TimeKeys());
-        int winSize = storage.windows.size();
+        int winSize = storage.windows().length;
         int expectedWinSize = storage.conf.historyWindowCount + 1 + storage.conf.futureWindowCount;
         Assert.assertEquals(expectedWinSize, winSize);
     }
 
+    @Test
+    public void ringLookupAfterRotations() {
+        Storage.Conf conf = new Storage.Conf();
+        conf.setWindowTimespanMs(TimeUnit.HOURS.toMillis(1));
+        conf.setHistoryWindowCount(168);
+        conf.setFutureWindowCount(2);
+        conf.setAllocationSize(4 * 1024);
+        long span = conf.windowTimespanMs;
+        long start = TimeKeys.normalizieTimestamp(System.currentTimeMillis());
+        Storage storage = new Storage(conf, start, new TimeKeys());
+        int count = 168 + 1 + 2;
+
+        for (int rotation = 0; rotation < 2 * count + 3; rotation++) {
+            Storage.Window[] wins = storage.windows();
+            assertEquals(count, wins.length);
+            long oldest = start + (rotation - 168) * span;
+            assertEquals(oldest, wins[0].startTstamp);
+            assertEquals(start + rotation * span, storage.nowWindow.startTstamp);
+
+            for (int idx = 0; idx < count; idx++) {
+                long winStart = oldest + idx * span;
+                assertSame(wins[idx], storage.windowForTstamp(winStart));
+                assertSame(wins[idx], storage.windowForTstamp(winStart + span - 1));
+                assertEquals(idx, storage.windowIndexForTstamp(winStart));
+            }
+            assertNull(storage.windowForTstamp(oldest - 1));
+            assertNull(storage.windowForTstamp(oldest + count * span));
+            assertEquals(-1, storage.windowIndexForTstamp(oldest - 1));
+
+            Storage.Window removed = storage.moveWindows();
+            assertSame(wins[0], removed);
+            assertNull(storage.windowForTstamp(removed.startTstamp));
+            storage.retire(removed);
+        }
+    }
+
+    @Test
+    public void rotationWithConcurrentReaders() throws Exception {
+        Storage.Conf conf = new Storage.Conf();
+        conf.setWindowTimespanMs(TimeUnit.MINUTES.toMillis(1));
+        conf.setHistoryWindowCount(2);
+        conf.setFutureWindowCount(1);
+        conf.setAllocationSize(64 * 1024);
+        conf.setMemory(ByteList.Memory.OFF_HEAP);
+        long start = TimeKeys.normalizieTimestamp(System.currentTimeMillis());
+        Storage storage = new Storage(conf, start, new TimeKeys());
+
+        // entries of oldest and now window
+        long oldest = storage.windows()[0].startTstamp;
+        HashMap<Long, byte[]> entries = new HashMap<>();
+        for (long tstamp: new long[] {oldest, start}) {
+            for (int i = 0; i < 1000; i++) {
+                byte[] data = randomData(10, 200);
+                entries.put(storage.addEntry(tstamp + i, data), data);
+            }
+        }
+        long[] keys = entries.keySet().stream().mapToLong(Long::longValue).toArray();
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        for (long key: keys) {
+                            byte[] data = storage.getEntry(key);
+                            if (data != null) assertArrayEquals(entries.get(key), data);
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            readers[t].start();
+        }
+
+        Thread.sleep(50);
+        Storage.Window removed = storage.moveWindows();
+        assertEquals(oldest, removed.startTstamp);
+        storage.retire(removed);
+        Thread.sleep(50);
+
+        done.set(true);
+        for (Thread t: readers) t.join();
+        assertNull(failure.get());
+
+        // entries of removed window are gone, others are intact
+        for (long key: keys) {
+            byte[] data = storage.getEntry(key);
+            if (storage.timeKeys.tstamp(key) < start) assertNull(data);
+            else assertArrayEquals(entries.get(key), data);
+        }
+        assertEquals(start + conf.windowTimespanMs, storage.nowWindow.startTstamp);
+        storage.close();
+    }
+
     @Test
     public void testInsertsOutsideWindow() {
         Storage storage = new Storage(new TimeKeys());
@@ -136,6 +237,48 @@ public class StorageTest {
     }
 
 
+    @Test
+    public void insertsOutsideKeyRange() {
+        Storage.Conf conf = new Storage.Conf();
+        conf.setWindowTimespanMs(TimeUnit.MINUTES.toMillis(1));
+        conf.setHistoryWindowCount(2);
+        conf.setFutureWindowCount(1);
+        long span = conf.windowTimespanMs;
+        long start = TimeKeys.normalizieTimestamp(System.currentTimeMillis());
+        long oldest = start - 2 * span;
+
+        // keys end 131 s after oldest window, within now window
+        TimeKeys keys = new TimeKeys(oldest, 1, 63 - 17);
+        Storage storage = new Storage(conf, start, keys);
+        byte[] data = new byte[100];
+
+        long inRange = oldest + span + 1000;
+        long pastRange = keys.maxTstamp() + 1;
+        assertNotEquals(0L, storage.addEntry(inRange, data));
+        assertEquals(0L, storage.addEntry(pastRange, data));
+
+        ByteList.Writer fill = (dest, pos, len) -> {};
+        assertEquals(0L, storage.append(pastRange, 10, null, fill));
+        long[] batch = storage.addEntries(new long[] {pastRange, inRange}, new byte[2][][], new int[] {10, 10}, new ByteList.Writer[] {fill, fill});
+        assertEquals(0L, batch[0]);
+        assertNotEquals(0L, batch[1]);
+
+        // nothing is written for tstamps past key range
+        assertEquals(0L, storage.windowForTstamp(pastRange).store.size());
+        assertEquals(2L, storage.windowForTstamp(inRange).store.size());
+
+        // rotation past key range fails, leaving windows as they are
+        Storage.Window[] wins = storage.windows();
+        try {
+            storage.moveWindows();
+            fail("Windows moved past key range");
+        }
+        catch (IllegalStateException e) {
+        }
+        assertArrayEquals(wins, storage.windows());
+    }
+
+
     @Test
     public void testInsertsInEachWindow() {
         Storage storage = new Storage(new TimeKeys());
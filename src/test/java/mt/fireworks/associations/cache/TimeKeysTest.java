@@ -1,6 +1,8 @@
 package mt.fireworks.associations.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -23,4 +25,25 @@ public class TimeKeysTest {
         long index2 = tk.index(key);
         assertEquals(index, index2);
     }
+
+    @Test
+    public void millisecondLayout() {
+        long start = System.currentTimeMillis();
+        TimeKeys tk = TimeKeys.inMillis(start, 365l * 24 * 3600 * 1000);
+        assertEquals(28, tk.indexBits);
+        assertTrue(tk.isExact());
+
+        long index = 0xCAFEBABl;
+        long key = tk.key(start + 1234, index);
+        assertEquals(start + 1234, tk.tstamp(key));
+        assertEquals(index, tk.index(key));
+        assertTrue(tk.lowestKey(start + 1234) <= key);
+        assertTrue(tk.lowestKey(start + 1235) > key);
+
+        // tstamps outside of key range bound all keys
+        assertEquals(0, tk.lowestKey(start - 1000));
+        assertEquals(Long.MAX_VALUE, tk.lowestKey(Long.MAX_VALUE));
+        assertThrows(RuntimeException.class, () -> tk.key(start - 1, 0));
+        assertThrows(RuntimeException.class, () -> tk.key(start, 1l << 28));
+    }
 }